@@ -68,6 +68,14 @@ public class AssociatedPriorityQueue<T> extends LinkedList<AssociatedPriorityQue
      */
     protected int maxAmount = 0;
 
+    // Handles for the debug stats, since prioritize() is very hot.
+    private static final DebugHelper.Counter PRIORITIZE         = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize");
+    private static final DebugHelper.Counter PRIORITIZE_NULL    = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize/nullReturn");
+    private static final DebugHelper.Counter PRIORITIZE_EXISTS  = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize/existsReturn");
+    private static final DebugHelper.Counter PRIORITIZE_BODY_1  = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize/body/1");
+    private static final DebugHelper.Counter PRIORITIZE_BODY_2  = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize/body/2");
+    private static final DebugHelper.Counter PRIORITIZE_BODY_3  = DebugHelper.getInstance().counter("AssociatedPriorityQueue.prioritize/body/3");
+
     public AssociatedPriorityQueue() {}
 
     public AssociatedPriorityQueue(int maxAmount) {
@@ -75,17 +83,17 @@ public class AssociatedPriorityQueue<T> extends LinkedList<AssociatedPriorityQue
     }
 
     public boolean prioritize(Item<T> item) {
-        DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize");
+        PRIORITIZE.hit();
 
         if (item == null || item.data == null) {
-            DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize/nullReturn");
+            PRIORITIZE_NULL.hit();
             return false;
         }
 
         int pos = this.isEmpty() ? -1 : Collections.binarySearch(this, item);
 
         if (pos >= 0) {
-            DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize/existsReturn");
+            PRIORITIZE_EXISTS.hit();
             // this key already exists!
             return false;
         } else {
@@ -94,17 +102,17 @@ public class AssociatedPriorityQueue<T> extends LinkedList<AssociatedPriorityQue
             if (this.atCapacity()) {
                 if (item.priority >= this.getWorstPriority()) {
                     // this is worse than all the other elements, and we're out of space.
-                    DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize/body/1");
+                    PRIORITIZE_BODY_1.hit();
                     return false;
                 } else {
                     // we have to remove the worst item to add this one.
-                    DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize/body/2");
+                    PRIORITIZE_BODY_2.hit();
                     this.add(insertionPoint, item);
                     this.removeLast();
                     return true;
                 }
             } else {
-                DebugHelper.getInstance().hit("AssociatedPriorityQueue.prioritize/body/3");
+                PRIORITIZE_BODY_3.hit();
                 this.add(insertionPoint, item);
                 return true;
             }
@@ -0,0 +1,349 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed gzip, the same layout as bgzip (BGZF) from htslib.
+ *
+ * The file is a series of small, independent gzip members (up to 64 KiB uncompressed each),
+ * so it's still a normal .gz file that gunzip and GZIPInputStream can read, but any position in the
+ * uncompressed file can be read by decompressing just the member it's in. Each member's header says
+ * how long it is, so finding the members doesn't need any decompression; the list is saved as a
+ * .gzi sidecar (in htslib's format) so it doesn't have to be worked out every time.
+ *
+ * To make a block-compressed file out of a .multifasta (or anything else):
+ *
+ *   java -cp release.jar BlockGzip <input> [output.gz]
+ */
+public class BlockGzip {
+    private static final DebugHelper.Counter INFLATES = DebugHelper.getInstance().counter("BlockGzip.inflate");
+    private static final DebugHelper.Counter COMPRESSED_BYTES = DebugHelper.getInstance().counter("BlockGzip.compressedBytes");
+
+    /** Uncompressed bytes per block; bgzip uses this too, so blocks always fit in 64 KiB even if they don't compress. */
+    private static final int BLOCK_DATA = 0xff00;
+    /** The most a block can take up, compressed (BSIZE is 16 bits). */
+    private static final int MAX_BLOCK = 1 << 16;
+    /** Header length: the gzip header, plus the 6-byte "BC" extra field with the block size in it. */
+    private static final int HEADER = 18;
+    /** Trailer length: CRC32 and the uncompressed size. */
+    private static final int TRAILER = 8;
+    /** The empty block at the end of every BGZF file. */
+    private static final byte[] EOF_BLOCK = {
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    };
+
+    /**
+     * @param file a file
+     * @return true if it starts with a BGZF block header
+     */
+    public static boolean isBlockCompressed(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(HEADER);
+            return isBlockHeader(header, 0, header.length);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBlockHeader(byte[] bytes, int offset, int length) {
+        return length >= HEADER
+            && bytes[offset] == 0x1f && bytes[offset + 1] == (byte) 0x8b && bytes[offset + 2] == 8
+            && (bytes[offset + 3] & 4) != 0 // FEXTRA
+            && bytes[offset + 10] == 6 && bytes[offset + 11] == 0
+            && bytes[offset + 12] == 'B' && bytes[offset + 13] == 'C';
+    }
+
+    /**
+     * Random access to a block-compressed file.
+     * Keeps the last block it decompressed, since records are read front to back.
+     * Reads are synchronized, so one Reader can be shared.
+     */
+    public static class Reader implements FASTAParser.Source {
+        private final FileChannel channel;
+        /** Where each block starts in the compressed file. */
+        private final long[] compressedOffsets;
+        /** Where each block starts in the uncompressed file. */
+        private final long[] uncompressedOffsets;
+
+        private final Inflater inflater = new Inflater(true);
+        private final ByteBuffer compressed = ByteBuffer.allocate(MAX_BLOCK);
+        private final byte[] block = new byte[MAX_BLOCK];
+        /** The block in `block`, or -1. */
+        private int cachedBlock = -1;
+        private int cachedLength = 0;
+
+        Reader(FileChannel channel, long[] compressedOffsets, long[] uncompressedOffsets) {
+            this.channel = channel;
+            this.compressedOffsets = compressedOffsets;
+            this.uncompressedOffsets = uncompressedOffsets;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer buffer, long position) throws IOException {
+            // the last block that starts at or before the position
+            int index = Arrays.binarySearch(uncompressedOffsets, position);
+            if (index < 0) index = -index - 2;
+            if (index < 0) return -1;
+
+            // skip empty blocks (like the one at the end)
+            while (index < compressedOffsets.length) {
+                decompress(index);
+                long within = position - uncompressedOffsets[index];
+                if (within < cachedLength) {
+                    int count = (int) Math.min(buffer.remaining(), cachedLength - within);
+                    buffer.put(block, (int) within, count);
+                    return count;
+                }
+                index++;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Decompress a block into `block`, unless it's there already.
+         */
+        private void decompress(int index) throws IOException {
+            if (cachedBlock == index) {
+                return;
+            }
+
+            long start = compressedOffsets[index];
+            long end = index + 1 < compressedOffsets.length ? compressedOffsets[index + 1] : channel.size();
+
+            compressed.clear().limit((int) (end - start));
+            while (compressed.hasRemaining()) {
+                if (channel.read(compressed, start + compressed.position()) <= 0) {
+                    throw new IOException("block-compressed file is truncated");
+                }
+            }
+            COMPRESSED_BYTES.add(end - start);
+
+            inflater.reset();
+            inflater.setInput(compressed.array(), HEADER, (int) (end - start) - HEADER - TRAILER);
+            try {
+                cachedLength = inflater.inflate(block);
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt block at " + start, e);
+            }
+            cachedBlock = index;
+            INFLATES.hit();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            channel.close();
+        }
+    }
+
+    /**
+     * @param file a block-compressed file
+     * @return its .gzi sidecar index
+     */
+    public static File getSidecar(File file) {
+        return new File(file.getPath() + ".gzi");
+    }
+
+    /**
+     * Open a block-compressed file for random access, using its .gzi sidecar if it's up to date
+     * (newer than the file, like htslib checks), or finding the blocks and saving one otherwise.
+     * @param file The file
+     * @return the reader
+     * @throws IOException if it couldn't be opened, or isn't block-compressed
+     */
+    public static Reader open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            long[][] offsets = null;
+            File sidecar = getSidecar(file);
+
+            if (sidecar.isFile() && sidecar.lastModified() >= file.lastModified()) {
+                offsets = readSidecar(sidecar);
+            }
+
+            if (offsets == null) {
+                offsets = findBlocks(channel);
+                writeSidecar(sidecar, offsets);
+            }
+
+            return new Reader(channel, offsets[0], offsets[1]);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Hop from block header to block header, adding up the uncompressed sizes from the trailers.
+     * @return {compressed offsets, uncompressed offsets}
+     */
+    private static long[][] findBlocks(FileChannel channel) throws IOException {
+        long[] compressedOffsets = new long[1024];
+        long[] uncompressedOffsets = new long[1024];
+        int count = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long compressed = 0;
+        long uncompressed = 0;
+        long size = channel.size();
+
+        while (compressed < size) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, compressed + header.position()) > 0);
+            if (!isBlockHeader(header.array(), 0, header.position())) {
+                throw new IOException("not a block-compressed file (bad block at " + compressed + ")");
+            }
+
+            int blockSize = (header.getShort(16) & 0xffff) + 1;
+            trailer.clear();
+            channel.read(trailer, compressed + blockSize - 4);
+            long blockData = trailer.getInt(0) & 0xffffffffL;
+
+            if (count == compressedOffsets.length) {
+                compressedOffsets = Arrays.copyOf(compressedOffsets, count * 2);
+                uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, count * 2);
+            }
+            compressedOffsets[count] = compressed;
+            uncompressedOffsets[count] = uncompressed;
+            count++;
+
+            compressed += blockSize;
+            uncompressed += blockData;
+        }
+
+        return new long[][] {Arrays.copyOf(compressedOffsets, count), Arrays.copyOf(uncompressedOffsets, count)};
+    }
+
+    /**
+     * Read a .gzi file: a little-endian count, then (compressed, uncompressed) offset pairs for every block but the first.
+     * @return {compressed offsets, uncompressed offsets}, or null if it's broken
+     */
+    private static long[][] readSidecar(File sidecar) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            int count = (int) Long.reverseBytes(in.readLong());
+            long[] compressedOffsets = new long[count + 1];
+            long[] uncompressedOffsets = new long[count + 1];
+
+            for (int i = 1; i <= count; i++) {
+                compressedOffsets[i] = Long.reverseBytes(in.readLong());
+                uncompressedOffsets[i] = Long.reverseBytes(in.readLong());
+            }
+
+            return new long[][] {compressedOffsets, uncompressedOffsets};
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Save a .gzi file. Not being able to isn't an error; the blocks just get found again next time.
+     */
+    private static void writeSidecar(File sidecar, long[][] offsets) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            out.writeLong(Long.reverseBytes(offsets[0].length - 1));
+            for (int i = 1; i < offsets[0].length; i++) {
+                out.writeLong(Long.reverseBytes(offsets[0][i]));
+                out.writeLong(Long.reverseBytes(offsets[1][i]));
+            }
+        } catch (IOException e) {
+            sidecar.delete();
+        }
+    }
+
+    /**
+     * Block-compress a file.
+     * @param input The file to compress
+     * @param output Where to write the block-compressed file
+     * @throws IOException if something couldn't be read or written
+     */
+    public static void compress(File input, File output) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        byte[] data = new byte[BLOCK_DATA];
+        byte[] compressed = new byte[MAX_BLOCK];
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 16);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+            int length;
+            while ((length = in.readNBytes(data, 0, BLOCK_DATA)) > 0) {
+                int size = deflate(deflater, data, length, compressed);
+                if (size < 0) {
+                    // didn't compress at all; storing always fits
+                    size = deflate(store, data, length, compressed);
+                }
+
+                crc.reset();
+                crc.update(data, 0, length);
+                int blockSize = HEADER + size + TRAILER;
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0});
+                header.putShort((short) (blockSize - 1));
+                out.write(header.array());
+                out.write(compressed, 0, size);
+
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER).order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt((int) crc.getValue());
+                trailer.putInt(length);
+                out.write(trailer.array());
+            }
+
+            out.write(EOF_BLOCK);
+        } finally {
+            deflater.end();
+            store.end();
+        }
+    }
+
+    /**
+     * @return the compressed size, or -1 if it doesn't fit in a block
+     */
+    private static int deflate(Deflater deflater, byte[] data, int length, byte[] output) {
+        int room = MAX_BLOCK - HEADER - TRAILER;
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        int size = 0;
+        while (!deflater.finished() && size < room) {
+            size += deflater.deflate(output, size, room - size);
+        }
+
+        return deflater.finished() ? size : -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: BlockGzip <input> [output.gz]");
+            return;
+        }
+
+        File input = new File(args[0]);
+        File output = new File(args.length > 1 ? args[1] : args[0] + ".gz");
+
+        compress(input, output);
+        // make the index now, so the first search doesn't have to
+        open(output).close();
+        System.out.printf("Wrote %s (%.1f MB -> %.1f MB)%n", output, input.length() / 1e6, output.length() / 1e6);
+    }
+}
@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Remembers the results of recent searches, so repeating one (a reference protein, a control...)
+ * takes microseconds instead of a whole tree search.
+ *
+ * Results are keyed by the query's content hash, its length, and the search mode and parameter (k or radius),
+ * and the query itself is kept to rule out hash collisions. Queries are compared exactly as given;
+ * FASTAParser has already upper-cased them and stripped the line breaks.
+ * The least recently used results are dropped once there are too many.
+ *
+ * Every entry remembers the generation of the index it came from. The generation goes up whenever
+ * the index changes (build(), invalidate(), or a change in the inner index's getVersion()),
+ * so stale results are never handed out.
+ *
+ * Optionally, a query that's within a small edit distance of a cached one gets a head start:
+ * the cached neighbors are measured against the new query first, and the search starts with
+ * the k-th best of those distances as its radius instead of infinity.
+ */
+public class CachingIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    private static final DebugHelper.Counter HITS      = DebugHelper.getInstance().counter("CachingIndex.hit");
+    private static final DebugHelper.Counter MISSES    = DebugHelper.getInstance().counter("CachingIndex.miss");
+    private static final DebugHelper.Counter NEAR_HITS = DebugHelper.getInstance().counter("CachingIndex.near/hit");
+
+    /** The kinds of searches that are cached. */
+    private static enum Mode { KNN, RANGE }
+
+    /** Range searches with more results than this aren't cached, so one huge radius can't eat all the memory. */
+    private static final int MAX_RANGE_RESULTS = 10_000;
+
+    /**
+     * What a search was for.
+     */
+    private static class Key {
+        final long hash;
+        final int length;
+        final Mode mode;
+        /** k, or the radius. */
+        final int parameter;
+
+        Key(String query, Mode mode, int parameter) {
+            this.hash = Util.hashSequence(query);
+            this.length = query.length();
+            this.mode = mode;
+            this.parameter = parameter;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return hash == other.hash && length == other.length && mode == other.mode && parameter == other.parameter;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hash, length, mode, parameter);
+        }
+    }
+
+    /**
+     * The results of a search.
+     */
+    private static class Entry<T> {
+        final String query;
+        final long generation;
+        final List<AssociatedPriorityQueue.Item<T>> results;
+
+        Entry(String query, long generation, List<AssociatedPriorityQueue.Item<T>> results) {
+            this.query = query;
+            this.generation = generation;
+            this.results = results;
+        }
+    }
+
+    /** The index doing the actual searching. */
+    private final SearchIndex<T> inner;
+    /** The maximum edit distance to a cached query for its neighbors to be used as a head start, or 0 to not bother. */
+    private final int nearDistance;
+    /** Bumped whenever the index changes. */
+    private long generation = 0;
+    /** The inner index's getVersion() as of the last check. */
+    private long innerVersion = 0;
+    /** The cached results, least recently used first. */
+    private final LinkedHashMap<Key, Entry<T>> entries;
+
+    /**
+     * Create a new, empty index.
+     * @param inner The (empty) index to cache the results of
+     * @param capacity The most searches to remember
+     * @param nearDistance The maximum edit distance to a cached query for its neighbors to be used as a head start, or 0 to not bother
+     */
+    public CachingIndex(SearchIndex<T> inner, int capacity, int nearDistance) {
+        this.inner = inner;
+        this.nearDistance = nearDistance;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry<T>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Forget every cached result. Call this whenever the nodes in the index change.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * @return the current generation of the index
+     */
+    public synchronized long getGeneration() {
+        checkVersion();
+        return generation;
+    }
+
+    /**
+     * Invalidate the cache if the inner index changed on its own (e.g. a shard was rebuilt).
+     */
+    private synchronized void checkVersion() {
+        long version = inner.getVersion();
+        if (version != innerVersion) {
+            innerVersion = version;
+            invalidate();
+        }
+    }
+
+    /**
+     * Look up the results of an earlier search.
+     * @param key What the search was for
+     * @param query The query, to rule out hash collisions
+     * @return a copy of the results, or null if they aren't cached (or are out of date)
+     */
+    private synchronized List<AssociatedPriorityQueue.Item<T>> lookup(Key key, String query) {
+        checkVersion();
+        Entry<T> entry = entries.get(key);
+
+        if (entry == null || entry.generation != generation || !entry.query.equals(query)) {
+            MISSES.hit();
+            return null;
+        }
+
+        HITS.hit();
+        return new ArrayList<>(entry.results);
+    }
+
+    /**
+     * Remember the results of a search.
+     * @param key What the search was for
+     * @param query The query
+     * @param generation The generation of the index when the search started
+     * @param results The results (copied)
+     */
+    private synchronized void store(Key key, String query, long generation, List<AssociatedPriorityQueue.Item<T>> results) {
+        checkVersion();
+        if (generation == this.generation) {
+            entries.put(key, new Entry<>(query, generation, new ArrayList<>(results)));
+        }
+    }
+
+    /**
+     * Find a search radius that's guaranteed to contain k nodes, using the neighbors of a similar cached query.
+     * @param query The new query
+     * @param k The number of neighbors wanted
+     * @return the radius, or VantagePointTree.NO_LIMIT if there isn't a similar enough query cached
+     */
+    private int findSeedRadius(String query, int k) {
+        Entry<T> nearest = null;
+        int nearestDistance = nearDistance + 1;
+
+        List<Map.Entry<Key, Entry<T>>> candidates;
+        synchronized (this) {
+            checkVersion();
+            candidates = new ArrayList<>(entries.entrySet());
+        }
+
+        for (Map.Entry<Key, Entry<T>> candidate : candidates) {
+            Key key = candidate.getKey();
+            // the length difference is a free lower bound, so only measure the ones that could be close enough
+            if (key.mode != Mode.KNN || key.parameter != k || Math.abs(key.length - query.length()) >= nearestDistance) {
+                continue;
+            }
+
+            int dist = EditDistance.measureFast(query, candidate.getValue().query);
+            if (dist < nearestDistance) {
+                nearest = candidate.getValue();
+                nearestDistance = dist;
+            }
+        }
+
+        if (nearest == null) {
+            return VantagePointTree.NO_LIMIT;
+        }
+
+        // Measure the old neighbors against the new query. They're probably close to it too.
+        // Only count one node per sequence, since deduplicated indexes only count one per sequence.
+        Set<Long> sequences = new HashSet<>();
+        AssociatedPriorityQueue<T> seeds = new AssociatedPriorityQueue<>(k);
+        for (AssociatedPriorityQueue.Item<T> item : nearest.results) {
+            if (sequences.add(item.data.getSequenceHash())) {
+                seeds.prioritizeItem(EditDistance.measureFast(query, item.data.getRawData()), item.data);
+            }
+        }
+
+        if (!seeds.atCapacity()) {
+            // there aren't k of them, so they can't bound the k-th nearest neighbor
+            return VantagePointTree.NO_LIMIT;
+        }
+
+        NEAR_HITS.hit();
+        return seeds.getWorstPriority();
+    }
+
+    @Override
+    public void build(Iterator<T> nodes) {
+        invalidate();
+        inner.build(nodes);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        Key key = new Key(query, Mode.KNN, k);
+        long generation = getGeneration();
+
+        List<AssociatedPriorityQueue.Item<T>> results = lookup(key, query);
+        if (results != null) {
+            return results;
+        }
+
+        int radius = nearDistance > 0 ? findSeedRadius(query, k) : VantagePointTree.NO_LIMIT;
+        results = inner.knn(query, k, radius);
+
+        store(key, query, generation, results);
+        return results;
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        // a shared tau (see ShardedIndex) can cut the search short, so those can't be cached either way
+        boolean shared = options.sharedTau != null;
+
+        if (options.isUnlimited() && options.maxDistance == VantagePointTree.NO_LIMIT && !shared) {
+            // the same as a normal search, so it can be cached like one
+            List<AssociatedPriorityQueue.Item<T>> results = knn(query, k);
+            options.emit(results);
+            return SearchResult.exact(results, 0);
+        }
+
+        long generation = getGeneration();
+        SearchResult<T> result = inner.knn(query, k, options);
+        if (result.exact && options.maxDistance == VantagePointTree.NO_LIMIT && !shared) {
+            // it finished in time, so it's as good as a normal search
+            store(new Key(query, Mode.KNN, k), query, generation, result.results);
+        }
+        return result;
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        // not worth caching separately; nothing asks for these repeatedly
+        return inner.knn(query, k, maxDistance);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        Key key = new Key(query, Mode.RANGE, radius);
+        long generation = getGeneration();
+
+        List<AssociatedPriorityQueue.Item<T>> results = lookup(key, query);
+        if (results != null) {
+            results.forEach(sink);
+            return;
+        }
+
+        List<AssociatedPriorityQueue.Item<T>> found = new ArrayList<>();
+        inner.range(query, radius, item -> {
+            if (found.size() <= MAX_RANGE_RESULTS) found.add(item);
+            sink.accept(item);
+        });
+
+        if (found.size() <= MAX_RANGE_RESULTS) {
+            store(key, query, generation, found);
+        }
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        return inner.pin(levels, maxBytes);
+    }
+
+    @Override
+    public VantagePointTree<T> getTree() {
+        return inner.getTree();
+    }
+
+    @Override
+    public List<T> getDuplicates(T node) {
+        return inner.getDuplicates(node);
+    }
+
+    @Override
+    public long getVersion() {
+        return inner.getVersion();
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+    }
+
+    @Override
+    public int size() {
+        return inner.size();
+    }
+
+    @Override
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>(inner.stats());
+        stats.put("cachedResults", (long) entries.size());
+        stats.put("generation", generation);
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        return inner.nodes();
+    }
+
+    @Override
+    public void print() {
+        inner.print();
+    }
+
+    @Override
+    public void verify() {
+        inner.verify();
+    }
+}
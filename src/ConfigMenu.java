@@ -4,8 +4,8 @@
  */
 public final class ConfigMenu {
     /**
-     * Whether to count and display debug statistics/instrumentation.
-     * See DebugHelper.java.
+     * Whether to display debug statistics/instrumentation.
+     * They're always counted, since that's cheap. See DebugHelper.java.
      */
     public static boolean SHOW_DEBUG_STATS = false;
 
@@ -34,6 +34,99 @@ public final class ConfigMenu {
      */
     public static boolean LOAD_MULTIFASTA = true;
 
+    /**
+     * Which SearchIndex engine to build on (re)indexing.
+     * The vp-tree is the original; the linear scan is exact and parallel but touches every sequence.
+     */
+    public static SearchIndex.Type INDEX_TYPE = SearchIndex.Type.VANTAGE_POINT_TREE;
+
+    /**
+     * The number of shells per vantage point in the m-ary vp-tree.
+     * Higher values mean shallower trees, but more work per node.
+     */
+    public static int VP_FANOUT = 4;
+
+    /**
+     * The number of sequence-length bands to split the index into.
+     * Each band gets its own index of type INDEX_TYPE. If <= 1, the corpus isn't split.
+     */
+    public static int LENGTH_BANDS = 1;
+
+    /**
+     * The number of shards to split the index into (see ShardedIndex.java). Each shard gets its own index
+     * of type INDEX_TYPE, and they're built and searched in parallel. If <= 1, the index isn't sharded.
+     */
+    public static int SHARDS = 1;
+
+    /**
+     * If true, identical sequences are only indexed once, and exact matches are looked up by hash.
+     * If false, every file gets its own node, even if it's a copy of another.
+     * Results are the same either way.
+     */
+    public static boolean DEDUPLICATE = true;
+
+    /**
+     * If true, print a SearchTrace after every search explaining where the work went.
+     * The last trace can also be exported as JSON from the main menu.
+     */
+    public static boolean EXPLAIN_SEARCHES = false;
+
+    /**
+     * When JDK Flight Recorder is running, only 1 in this many edit distance calculations
+     * is considered for a DistanceComputationEvent. 1 means every call.
+     */
+    public static int JFR_DISTANCE_SAMPLE_RATE = 100;
+
+    /**
+     * The number of threads reading and parsing files while the index is (re)built.
+     * Reading is mostly waiting on the disk, so this can be higher than the number of cores.
+     */
+    public static int INGEST_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The most files to keep open at once for reading sequences (see FileChannelPool).
+     * Keep this well under the open file limit (ulimit -n).
+     */
+    public static int MAX_OPEN_FILES = 256;
+
+    /**
+     * How many levels of the index (from the root down) to keep the sequences of in memory for good.
+     * Every search measures the query against the nodes near the root, so these are always worth keeping.
+     */
+    public static int PIN_LEVELS = 10;
+
+    /**
+     * The most memory to spend on pinned sequences, in megabytes. Pinning stops early if this runs out.
+     */
+    public static int PIN_MEGABYTES = 64;
+
+    /**
+     * How many nodes at the front of the search queue to start reading in the background
+     * while the current one is measured. 0 turns prefetching off.
+     */
+    public static int PREFETCH_DEPTH = 4;
+
+    /**
+     * How many searches to remember the results of (see CachingIndex.java). 0 turns the result cache off.
+     */
+    public static int RESULT_CACHE_SIZE = 256;
+
+    /**
+     * If a query is within this edit distance of a cached one, the cached neighbors are used to
+     * narrow down the search from the start. 0 turns this off. Results are the same either way.
+     */
+    public static int RESULT_CACHE_NEAR_DISTANCE = 0;
+
+    /**
+     * How long a search can take, in milliseconds, before settling for the best results so far. 0 means no limit.
+     */
+    public static int SEARCH_TIME_LIMIT_MS = 0;
+
+    /**
+     * How many exact edit distances a search can calculate before settling for the best results so far. 0 means no limit.
+     */
+    public static int SEARCH_MAX_DISTANCE_CALLS = 0;
+
     /**
      * Display the menu by forking an existing Prompt object.
      * @param parent The existing Prompt object to fork.
@@ -56,7 +149,7 @@ public final class ConfigMenu {
 
             subPrompt.doPrompt();
 
-            DebugHelper.getInstance().clear();
+            DebugHelper.getInstance().reset();
         });
 
         prompt.addVoidOption("Number of neighbors to search for", p -> {
@@ -107,6 +200,112 @@ public final class ConfigMenu {
             subPrompt.doPrompt();
         });
 
+        prompt.addVoidOption("Index engine", p -> {
+            Prompt subPrompt = prompt.fork();
+            subPrompt.setQuery(String.format("Currently using the %s engine (takes effect on the next rebuild).", INDEX_TYPE));
+
+            for (SearchIndex.Type type : SearchIndex.Type.values()) {
+                subPrompt.addVoidOption(String.format("Use %s", type), sp -> {
+                    INDEX_TYPE = type;
+                });
+            }
+
+            subPrompt.doPrompt();
+        });
+
+        prompt.addVoidOption("Fan-out of the m-ary vp-tree", p -> {
+            System.out.printf("The current value is %d.%n", VP_FANOUT);
+            VP_FANOUT = Prompt.nextInt(prompt.getScanner(), "New value:", 2, 64);
+        });
+
+        prompt.addVoidOption("Number of sequence-length bands", p -> {
+            System.out.printf("The current value is %d (1 means no banding).%n", LENGTH_BANDS);
+            LENGTH_BANDS = Prompt.nextInt(prompt.getScanner(), "New value:", 1, 256);
+        });
+
+        prompt.addVoidOption("Number of shards", p -> {
+            System.out.printf("The current value is %d (1 means no sharding; takes effect on the next rebuild).%n", SHARDS);
+            SHARDS = Prompt.nextInt(prompt.getScanner(), "New value:", 1, 256);
+        });
+
+        prompt.addVoidOption("Enable/disable deduplication of identical sequences", p -> {
+            Prompt subPrompt = prompt.fork();
+            subPrompt.setQuery(String.format("Currently, deduplication is %s.", DEDUPLICATE ? "enabled" : "disabled"));
+            
+            subPrompt.addVoidOption("Enable", sp -> {
+                DEDUPLICATE = true;
+            });
+            subPrompt.addVoidOption("Disable", sp -> {
+                DEDUPLICATE = false;
+            });
+
+            subPrompt.doPrompt();
+        });
+
+        prompt.addVoidOption("Enable/disable search traces (EXPLAIN)", p -> {
+            Prompt subPrompt = prompt.fork();
+            subPrompt.setQuery(String.format("Currently, search traces are %s.", EXPLAIN_SEARCHES ? "enabled" : "disabled"));
+            
+            subPrompt.addVoidOption("Enable", sp -> {
+                EXPLAIN_SEARCHES = true;
+            });
+            subPrompt.addVoidOption("Disable", sp -> {
+                EXPLAIN_SEARCHES = false;
+            });
+
+            subPrompt.doPrompt();
+        });
+
+        prompt.addVoidOption("Flight Recorder distance event sample rate", p -> {
+            System.out.printf("Currently 1 in every %d distance calculations is sampled.%n", JFR_DISTANCE_SAMPLE_RATE);
+            JFR_DISTANCE_SAMPLE_RATE = Prompt.nextInt(prompt.getScanner(), "New value:", 1, 1_000_000);
+        });
+
+        prompt.addVoidOption("Number of file loading threads", p -> {
+            System.out.printf("The current value is %d.%n", INGEST_THREADS);
+            INGEST_THREADS = Prompt.nextInt(prompt.getScanner(), "New value:", 1, 256);
+        });
+
+        prompt.addVoidOption("Maximum number of open files", p -> {
+            System.out.printf("The current value is %d.%n", MAX_OPEN_FILES);
+            MAX_OPEN_FILES = Prompt.nextInt(prompt.getScanner(), "New value:", 1, 65536);
+        });
+
+        prompt.addVoidOption("Number of tree levels to pin in memory", p -> {
+            System.out.printf("The current value is %d (0 means nothing is pinned; takes effect on the next rebuild).%n", PIN_LEVELS);
+            PIN_LEVELS = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 64);
+        });
+
+        prompt.addVoidOption("Memory for pinned sequences (MB)", p -> {
+            System.out.printf("The current value is %d (takes effect on the next rebuild).%n", PIN_MEGABYTES);
+            PIN_MEGABYTES = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 65536);
+        });
+
+        prompt.addVoidOption("Number of sequences to prefetch during searches", p -> {
+            System.out.printf("The current value is %d (0 means no prefetching).%n", PREFETCH_DEPTH);
+            PREFETCH_DEPTH = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 64);
+        });
+
+        prompt.addVoidOption("Number of search results to cache", p -> {
+            System.out.printf("The current value is %d (0 means no caching; takes effect on the next rebuild).%n", RESULT_CACHE_SIZE);
+            RESULT_CACHE_SIZE = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 1_000_000);
+        });
+
+        prompt.addVoidOption("Edit distance for reusing a similar cached search", p -> {
+            System.out.printf("The current value is %d (0 means only exact repeats are reused; takes effect on the next rebuild).%n", RESULT_CACHE_NEAR_DISTANCE);
+            RESULT_CACHE_NEAR_DISTANCE = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 1000);
+        });
+
+        prompt.addVoidOption("Search time limit (ms)", p -> {
+            System.out.printf("The current value is %d (0 means no limit).%n", SEARCH_TIME_LIMIT_MS);
+            SEARCH_TIME_LIMIT_MS = Prompt.nextInt(prompt.getScanner(), "New value:", 0, 86_400_000);
+        });
+
+        prompt.addVoidOption("Search distance calculation limit", p -> {
+            System.out.printf("The current value is %d (0 means no limit).%n", SEARCH_MAX_DISTANCE_CALLS);
+            SEARCH_MAX_DISTANCE_CALLS = Prompt.nextInt(prompt.getScanner(), "New value:", 0, Integer.MAX_VALUE);
+        });
+
         prompt.addDoneOption();
         prompt.promptUntilDone();
     }
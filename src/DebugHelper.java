@@ -1,8 +1,16 @@
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Helper for collecting statistics to estimate performance of various algorithms.
  * You can access this by enabling debug stats in the debug menu.
+ *
+ * Hot paths should grab a Counter or Histogram handle once (e.g. in a static final field)
+ * instead of calling hit() with a String every time, which has to look the counter up.
+ * Everything here is lock-free, so it's safe (and cheap) to use from parallel searches.
  */
 public class DebugHelper {
     private static DebugHelper INSTANCE = new DebugHelper();
@@ -16,60 +24,290 @@ public class DebugHelper {
     }
 
     /**
-     * Event counts.
-     * We use TreeMap so it's alphabetical by default.
-     * You could use HashMap and sort the keys yourself if you wanted to.
+     * An event count. Striped internally, so many threads can hit it at once without contention.
      */
-    private TreeMap<String, Integer> stats = new TreeMap<>();
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
 
-    public DebugHelper() {
-        clear();
+        /** Increment the event count. */
+        public void hit() {
+            adder.increment();
+        }
+
+        /**
+         * Add to the event count.
+         * @param amount how many events happened
+         */
+        public void add(long amount) {
+            adder.add(amount);
+        }
+
+        /** @return the current count */
+        public long get() {
+            return adder.sum();
+        }
     }
 
     /**
-     * Print out the numeric statistics.
+     * A log-bucketed histogram of (usually nanosecond) values, for latency percentiles.
+     * Each power of two is split into 2^SUB_BITS linear buckets, so percentiles are within about 12.5%.
      */
-    public void print() {
-        // Don't clutter up stdout with useless info.
-        if (!ConfigMenu.SHOW_DEBUG_STATS) {
-            return;
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final LongAdder[] buckets = new LongAdder[64 << SUB_BITS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
         }
 
-        System.out.println("<stats>");
-        for (String key : stats.keySet()) {
-            System.out.printf("  '%s': %s%n", key, stats.get(key));
+        /**
+         * @param value a non-negative value
+         * @return the index of the bucket holding value
+         */
+        static int getBucket(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BITS)); // in [SUB_COUNT, 2 * SUB_COUNT)
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (mantissa - SUB_COUNT);
+        }
+
+        /**
+         * @param bucket a bucket index
+         * @return the smallest value that lands in that bucket
+         */
+        static long getBucketLow(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+
+            int exponent = (bucket >> SUB_BITS) - 1 + SUB_BITS;
+            long mantissa = (bucket & (SUB_COUNT - 1)) + SUB_COUNT;
+            return mantissa << (exponent - SUB_BITS);
+        }
+
+        /**
+         * Record a value.
+         * @param value the value; negative values count as zero
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets[getBucket(value)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Take a snapshot of the recorded values.
+         * @param reset whether to clear the histogram at the same time
+         * @return the snapshot
+         */
+        HistogramSnapshot snapshot(boolean reset) {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = reset ? buckets[i].sumThenReset() : buckets[i].sum();
+            }
+
+            return new HistogramSnapshot(
+                counts,
+                reset ? count.sumThenReset() : count.sum(),
+                reset ? sum.sumThenReset() : sum.sum(),
+                reset ? max.getThenReset() : max.get()
+            );
         }
-        System.out.println("</stats>");
     }
 
     /**
-     * Clear all the stats.
+     * A frozen copy of a Histogram.
      */
-    public void clear() {
-        stats.clear();
+    public static final class HistogramSnapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** @return the mean value, or 0 if nothing was recorded */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Estimate a percentile.
+         * @param p the percentile, from 0 to 100
+         * @return an upper estimate of the value at that percentile, or 0 if nothing was recorded
+         */
+        public long getPercentile(double p) {
+            long total = 0;
+            for (long c : counts) total += c;
+
+            long rank = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    // the top of this bucket, but never more than the real maximum
+                    return Math.min(max, i + 1 < counts.length ? Histogram.getBucketLow(i + 1) - 1 : Long.MAX_VALUE);
+                }
+            }
+
+            return 0;
+        }
     }
 
     /**
-     * Same as calling print() then clear().
+     * A frozen copy of all the stats at some point in time.
      */
-    public void lap() {
-        print();
-        clear();
+    public static final class Snapshot {
+        /** Event counts, alphabetical. */
+        public final Map<String, Long> counts;
+        /** Histograms, alphabetical. */
+        public final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(Map<String, Long> counts, Map<String, HistogramSnapshot> histograms) {
+            this.counts = counts;
+            this.histograms = histograms;
+        }
+
+        /**
+         * Print out the stats, if debug stats are enabled.
+         */
+        public void print() {
+            // Don't clutter up stdout with useless info.
+            if (!ConfigMenu.SHOW_DEBUG_STATS) {
+                return;
+            }
+
+            System.out.println("<stats>");
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                System.out.printf("  '%s': %s%n", entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                HistogramSnapshot h = entry.getValue();
+                System.out.printf(
+                    "  '%s': n=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                    entry.getKey(), h.count, h.getMean() / 1000,
+                    h.getPercentile(50) / 1000.0, h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.max / 1000.0
+                );
+            }
+            System.out.println("</stats>");
+        }
     }
 
     /**
-     * Increment event count.
-     * @param event the statistics key for this event
+     * Event counters, by name.
+     * We use a sorted map so it's alphabetical by default.
      */
-    public void hit(String event) {
-        if (!ConfigMenu.SHOW_DEBUG_STATS) {
-            // This can get expensive.
-            return;
+    private final ConcurrentSkipListMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    /**
+     * Histograms, by name.
+     */
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get (or register) a counter. Hold on to the result instead of calling this on hot paths.
+     * @param event the statistics key for the counter
+     * @return the counter
+     */
+    public Counter counter(String event) {
+        return counters.computeIfAbsent(event, e -> new Counter());
+    }
+
+    /**
+     * Get (or register) a histogram. Hold on to the result instead of calling this on hot paths.
+     * @param name the statistics key for the histogram
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Take a snapshot of every counter and histogram.
+     * @param reset whether to reset everything to zero at the same time
+     * @return the snapshot
+     */
+    private Snapshot snapshot(boolean reset) {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long value = reset ? entry.getValue().adder.sumThenReset() : entry.getValue().get();
+            // skip counters that were registered but never hit, to keep the output short
+            if (value != 0) counts.put(entry.getKey(), value);
         }
 
-        // Start the count at zero if we haven't counted this event yet.
-        stats.putIfAbsent(event, 0);
-        // Increment the event count.
-        stats.compute(event, (k, i) -> i + 1);
+        TreeMap<String, HistogramSnapshot> histogramSnapshots = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            HistogramSnapshot value = entry.getValue().snapshot(reset);
+            if (value.count != 0) histogramSnapshots.put(entry.getKey(), value);
+        }
+
+        return new Snapshot(counts, histogramSnapshots);
+    }
+
+    /**
+     * Take a snapshot of every counter and histogram.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Take a snapshot of every counter and histogram, and reset them all to zero.
+     * Events that happen while this is running land in either this snapshot or the next one, never neither.
+     * @return the snapshot
+     */
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    /**
+     * Print out the current stats.
+     */
+    public void print() {
+        snapshot().print();
+    }
+
+    /**
+     * Reset all the stats. Registered handles stay valid.
+     */
+    public void reset() {
+        snapshotAndReset();
+    }
+
+    /**
+     * Get the current count for an event.
+     * @param event the statistics key
+     * @return the number of hits since the last reset
+     */
+    public long get(String event) {
+        Counter counter = counters.get(event);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Increment event count. Fine for cold paths; hot paths should use a Counter handle.
+     * @param event the statistics key for this event
+     */
+    public void hit(String event) {
+        counter(event).hit();
     }
 }
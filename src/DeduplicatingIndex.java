@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Collapses identical sequences into a single indexed node.
+ *
+ * Lots of UniProt entries share the exact same sequence (isoforms, strains, ...),
+ * and there's no point in measuring the same sequence over and over again.
+ * Only one representative of each sequence goes into the wrapped index,
+ * and each result is expanded back into all of its duplicates at the same distance.
+ *
+ * As a bonus, the content hashes double as an O(1) lookup for exact matches.
+ */
+public class DeduplicatingIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /** The index holding one representative per distinct sequence. */
+    private final SearchIndex<T> inner;
+    /** Representatives by content hash. More than one only if there's a hash collision. */
+    private final HashMap<Long, List<T>> representatives = new HashMap<>();
+    /** Every node with the same sequence as the representative (including the representative itself). */
+    private final HashMap<T, List<T>> duplicates = new HashMap<>();
+    /** The total number of nodes, including duplicates. */
+    private int size = 0;
+
+    /**
+     * Create a new, empty index.
+     * @param inner The (empty) index to put the representatives in
+     */
+    public DeduplicatingIndex(SearchIndex<T> inner) {
+        this.inner = inner;
+    }
+
+    /**
+     * Find the representative with exactly the given sequence.
+     * @param hash The content hash of the sequence
+     * @param sequence The sequence itself, used to rule out hash collisions
+     * @return the representative, or null if there isn't one
+     */
+    private T findRepresentative(long hash, String sequence) {
+        List<T> candidates = representatives.get(hash);
+
+        if (candidates != null) {
+            for (T candidate : candidates) {
+                if (candidate.getLength() == sequence.length() && candidate.getRawData().equals(sequence)) {
+                    return candidate;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void build(Iterator<T> iterator) {
+        List<T> unique = new ArrayList<>();
+
+        while (iterator.hasNext()) {
+            T node = iterator.next();
+            long hash = node.getSequenceHash();
+            size++;
+
+            // only bother loading the sequence if the hash says it's probably a duplicate
+            T representative = representatives.containsKey(hash) ? findRepresentative(hash, node.getRawData()) : null;
+
+            if (representative == null) {
+                representatives.computeIfAbsent(hash, h -> new ArrayList<>(1)).add(node);
+                duplicates.computeIfAbsent(node, n -> new ArrayList<>(1)).add(node);
+                unique.add(node);
+            } else {
+                DebugHelper.getInstance().hit("DeduplicatingIndex.build/duplicate");
+                duplicates.get(representative).add(node);
+            }
+        }
+
+        System.out.printf("%d of %d sequences are unique.%n", unique.size(), size);
+        inner.build(unique.iterator());
+    }
+
+    /**
+     * Expand a result into all the nodes sharing its sequence.
+     * @param item A result from the inner index
+     * @param sink Receives every duplicate, at the same distance
+     */
+    private void expand(AssociatedPriorityQueue.Item<T> item, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        for (T node : duplicates.getOrDefault(item.data, List.of(item.data))) {
+            sink.accept(new AssociatedPriorityQueue.Item<>(item.priority, node));
+        }
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        return this.knn(query, k, VantagePointTree.NO_LIMIT);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        return this.knn(query, k, new SearchOptions<T>().withMaxDistance(maxDistance)).results;
+    }
+
+    /**
+     * Expand results into all the nodes sharing their sequences.
+     * @param items Results from the inner index
+     * @return every duplicate of every result, at the same distances
+     */
+    private List<AssociatedPriorityQueue.Item<T>> expandAll(List<AssociatedPriorityQueue.Item<T>> items) {
+        List<AssociatedPriorityQueue.Item<T>> results = new ArrayList<>();
+        for (AssociatedPriorityQueue.Item<T> item : items) {
+            expand(item, results::add);
+        }
+        return results;
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        T exact = findRepresentative(Util.hashSequence(query), query);
+
+        if (exact != null && duplicates.get(exact).size() >= k) {
+            // we already have k results at distance 0, so nothing in the index can beat them
+            DebugHelper.getInstance().hit("DeduplicatingIndex.knn/exactMatch");
+            List<AssociatedPriorityQueue.Item<T>> results = new ArrayList<>();
+            expand(new AssociatedPriorityQueue.Item<>(0, exact), results::add);
+            options.emit(results);
+            return SearchResult.exact(results, 0);
+        }
+
+        SearchOptions<T> innerOptions = options.copy();
+        if (options.listener != null) {
+            innerOptions.listener = items -> options.emit(expandAll(items));
+        }
+
+        SearchResult<T> result = inner.knn(query, k, innerOptions);
+        return new SearchResult<>(expandAll(result.results), result.exact, result.lowerBound, result.distanceCalls);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        inner.range(query, radius, item -> expand(item, sink));
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        // only the representatives ever get measured
+        return inner.pin(levels, maxBytes);
+    }
+
+    @Override
+    public VantagePointTree<T> getTree() {
+        // only the representatives are in it
+        return inner.getTree();
+    }
+
+    @Override
+    public List<T> getDuplicates(T node) {
+        return duplicates.getOrDefault(node, List.of(node));
+    }
+
+    @Override
+    public long getVersion() {
+        return inner.getVersion();
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>(inner.stats());
+        stats.put("nodes", (long) size);
+        stats.put("unique", (long) inner.size());
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        List<T> nodes = new ArrayList<>(size);
+        for (List<T> group : duplicates.values()) {
+            nodes.addAll(group);
+        }
+        return nodes;
+    }
+
+    @Override
+    public void print() {
+        inner.print();
+    }
+
+    @Override
+    public void verify() {
+        for (Map.Entry<T, List<T>> entry : duplicates.entrySet()) {
+            for (T duplicate : entry.getValue()) {
+                assert duplicate.getRawData().equals(entry.getKey().getRawData());
+            }
+        }
+
+        inner.verify();
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.HashMap;
+import java.util.function.ObjIntConsumer;
 
 /**
  * A smart wrapper for EditDistance that computes upper and lower bounds for distance
@@ -8,14 +9,32 @@ import java.util.HashMap;
  * Each instance of this class corresponds to a single point to calculate distance to.
  */
 public class DistanceCache<T extends VantagePointTree.Node> extends HashMap<VantagePointTree<T>, Pair<Integer>> {
+    private static final DebugHelper.Counter DISTANCE      = DebugHelper.getInstance().counter("DistanceCache.distance");
+    private static final DebugHelper.Counter DISTANCE_BODY = DebugHelper.getInstance().counter("DistanceCache.distance/body");
+
     private String target;
+    /** If not null, receives every node we measure the exact distance to. */
+    private final ObjIntConsumer<T> onMeasured;
+
+    /** How many times we actually had to call EditDistance. */
+    private int measurements = 0;
 
     /**
      * Create a new instance.
      * @param target the point to/from which distances are calculated
      */
     public DistanceCache(String target) {
+        this(target, null);
+    }
+
+    /**
+     * Create a new instance that reports every exact distance it measures.
+     * @param target the point to/from which distances are calculated
+     * @param onMeasured if not null, receives every node measured, with its distance
+     */
+    public DistanceCache(String target, ObjIntConsumer<T> onMeasured) {
         this.target = target;
+        this.onMeasured = onMeasured;
     }
     
     /**
@@ -24,21 +43,33 @@ public class DistanceCache<T extends VantagePointTree.Node> extends HashMap<Vant
      * @return the exact edit distance from target to tree
      */
     public int distance(VantagePointTree<T> tree) {
-        DebugHelper.getInstance().hit("DistanceCache.distance");
+        DISTANCE.hit();
 
         Pair<Integer> value = this.getBounds(tree);
         if (value == null || !value.a.equals(value.b)) {
-            DebugHelper.getInstance().hit("DistanceCache.distance/body");
+            DISTANCE_BODY.hit();
             // we probably can't cheese the distance calculations via exact lower = upper bound
             // so just compute it expensively
             int exact = EditDistance.measure(target, tree.root.getRawData());
+            measurements++;
+            if (onMeasured != null) onMeasured.accept(tree.root, exact);
             value = new Pair<Integer>(exact, exact);
             this.put(tree, value);
+        } else {
+            SearchTrace trace = SearchTrace.current();
+            if (trace != null) trace.distanceCacheHits++;
         }
 
         return value.a; // which is the same as value.b
     }
 
+    /**
+     * @return the number of exact distances that had to be measured so far
+     */
+    public int getMeasurements() {
+        return measurements;
+    }
+
     /**
      * Get very loose lower and upper bounds on edit distance to/from tree
      * @param tree the point of interest
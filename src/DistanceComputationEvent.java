@@ -0,0 +1,55 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder event for a single edit distance calculation (see EditDistance.measure).
+ *
+ * There are far too many of these to record them all, so only one in every
+ * ConfigMenu.JFR_DISTANCE_SAMPLE_RATE calls is even timed, and of those,
+ * only the ones over the threshold (1 ms by default, can be changed in the .jfc settings) are committed.
+ */
+@Name("ProteinSearch.DistanceComputation")
+@Label("Distance Computation")
+@Category("ProteinSearch")
+@Description("A sampled edit distance calculation")
+@Threshold("1 ms")
+public class DistanceComputationEvent extends Event {
+    /** Used to check whether the event is enabled, without allocating one. */
+    private static final EventType TYPE = EventType.getEventType(DistanceComputationEvent.class);
+
+    @Label("First Length")
+    public int lengthA;
+
+    @Label("Second Length")
+    public int lengthB;
+
+    @Label("DP Cells")
+    public long cells;
+
+    @Label("Ruler")
+    public String ruler;
+
+    /**
+     * Maybe create an event, if recording is on and this call is sampled.
+     * @return a new event, or null if this call shouldn't be recorded
+     */
+    public static DistanceComputationEvent sample() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+
+        int rate = ConfigMenu.JFR_DISTANCE_SAMPLE_RATE;
+        if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            return null;
+        }
+
+        return new DistanceComputationEvent();
+    }
+}
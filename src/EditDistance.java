@@ -1,5 +1,4 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Helper class for computing edit distance between Strings.
@@ -30,94 +29,123 @@ public class EditDistance {
     }
 
     /**
-     * A recursive implementation of AbstractRuler. Slow. Very slow.
+     * A recursive implementation of AbstractRuler: the top-down, memoized one from the project proposal.
+     * measure(x, y) is the distance between s.substring(x) and t.substring(y), worked out from
+     * measure(x + 1, y + 1), measure(x, y + 1) and measure(x + 1, y).
+     *
+     * The "recursion" runs on an explicit stack, so long sequences can't blow through the thread's stack,
+     * and the memo is a flat int[] with one entry per (x, y), so there's no boxing and no hashing.
+     * It's still a memo entry per DP cell, though, so it uses (s.length() + 1) * (t.length() + 1) ints.
      */
     protected static class RecursiveRuler extends AbstractRuler {
+        /** Marks a memo entry that hasn't been worked out yet. */
+        private static final int UNKNOWN = -1;
+
         /**
-         * cache as specified in project proposal
-         * it has to use Pairs instead of Points because it hinges on having stupid fast hashCode speed
-         * this is honestly an awful way to compute edit distance, but I didn't have time to submit another proposal
+         * cache as specified in project proposal: memo[x * (t.length() + 1) + y] is measure(x, y), or UNKNOWN
          */
-        Map<Pair<Integer>, Integer> cache;
+        private int[] memo;
+        /** The length of the longest common suffix of s and t. */
+        private int commonSuffix;
 
         RecursiveRuler(String s, String t) {
             super(s, t);
-            // If you'd like, you can try using this TreeMap instead of the HashMap.
-            // It wasn't faster in my experience.
-            /*
-            this.cache = new TreeMap<>(new Comparator<Pair<Integer>>() {
-                @Override
-                public int compare(Pair<Integer> arg0, Pair<Integer> arg1) {
-                    int r = arg0.a - arg1.a;
-                    if (r == 0) {
-                        r = arg0.b - arg1.b;
-                    }
-                    return r;
-                }
-            });
-            */
-            this.cache = new HashMap<>();
         }
 
         /**
-         * Measure the edit distance between strings starting at the specified offsets
-         * @param x The offset into s to start at (s.substring(x))
-         * @param y The offset into t to start at (t.substring(y))
-         * @return The total edit distance
+         * Whether s.substring(x) equals t.substring(y), without making the substrings.
          */
-        private int _measure(int x, int y) {
-            // if the substring of s is zero length
-            if (x == s.length()) {
-                // return the number of remaining characters in t
-                return t.length() - y;
-            }
+        private boolean suffixesEqual(int x, int y) {
+            int remaining = s.length() - x;
+            return remaining == t.length() - y && remaining <= commonSuffix;
+        }
 
-            // if the substring of t is zero length
-            if (y == t.length()) {
-                // return the number of remaining characters in s
-                return s.length() - x;
+        @Override
+        public int measure() {
+            int m = s.length();
+            int n = t.length();
+            int width = n + 1;
+
+            long cells = (long) (m + 1) * width;
+            if (cells > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(String.format("%d x %d is too big for the recursive ruler; use the fast one", m, n));
             }
 
-            // The actual substrings
-            String ss = s.substring(x);
-            String tt = t.substring(y);
+            memo = new int[(int) cells];
+            Arrays.fill(memo, UNKNOWN);
 
-            if (ss.equals(tt)) {
-                // the substrings are equal
-                return 0;
+            commonSuffix = 0;
+            while (commonSuffix < Math.min(m, n) && s.charAt(m - 1 - commonSuffix) == t.charAt(n - 1 - commonSuffix)) {
+                commonSuffix++;
             }
 
-            // The first characters of the substrings
-            char a = ss.charAt(0);
-            char b = tt.charAt(0);
+            // each "call" pushes at most 3 more, and they go at most m + n deep
+            int[] stack = new int[3 * (m + n) + 1];
+            int top = 0;
+            stack[top++] = 0;
+
+            while (top > 0) {
+                int cell = stack[top - 1];
+                if (memo[cell] != UNKNOWN) {
+                    // already worked out (it was pushed more than once)
+                    top--;
+                    continue;
+                }
+
+                int x = cell / width;
+                int y = cell % width;
+
+                // if the substring of s is zero length, it's the number of remaining characters in t
+                // if the substring of t is zero length, it's the number of remaining characters in s
+                // if the substrings are equal, it's 0
+                if (x == m) {
+                    memo[cell] = n - y;
+                    top--;
+                    continue;
+                }
+                if (y == n) {
+                    memo[cell] = m - x;
+                    top--;
+                    continue;
+                }
+                if (suffixesEqual(x, y)) {
+                    memo[cell] = 0;
+                    top--;
+                    continue;
+                }
+
+                int diagonal = cell + width + 1;
+                if (s.charAt(x) == t.charAt(y)) {
+                    // the first chars are equal
+                    if (memo[diagonal] == UNKNOWN) {
+                        stack[top++] = diagonal;
+                    } else {
+                        memo[cell] = memo[diagonal];
+                        top--;
+                    }
+                    continue;
+                }
 
-            if (a == b) {
-                // the first chars are equal
-                return this.measure(new Pair<>(x + 1, y + 1));
-            } else {
                 // they're not equal, so that's automatically one "edit distance point"
-                int min = this.measure(new Pair<>(x + 1, y + 1));
-                min = Math.min(min, this.measure(new Pair<>(x, y + 1)));
-                min = Math.min(min, this.measure(new Pair<>(x + 1, y)));
-                return 1 + min;
-            }
-        }
+                int right = cell + 1;
+                int down = cell + width;
+                if (memo[diagonal] == UNKNOWN || memo[right] == UNKNOWN || memo[down] == UNKNOWN) {
+                    // "call" the missing ones (in reverse, so they're worked out in the same order as before),
+                    // and come back to this one once they're done
+                    if (memo[down] == UNKNOWN) stack[top++] = down;
+                    if (memo[right] == UNKNOWN) stack[top++] = right;
+                    if (memo[diagonal] == UNKNOWN) stack[top++] = diagonal;
+                    continue;
+                }
 
-        // Same as _measure but caches results
-        private int measure(Pair<Integer> p) {
-            // Check if it's in the cache already
-            Integer n = cache.get(p);
-            if (n == null) {
-                // It's not, let's go compute and add it
-                n = this._measure(p.a, p.b);
-                cache.put(p, n);
+                memo[cell] = 1 + Math.min(memo[diagonal], Math.min(memo[right], memo[down]));
+                top--;
             }
-            return n;
-        }
 
-        @Override
-        public int measure() {
-            return this.measure(new Pair<Integer>(0, 0));
+            int result = memo[0];
+            // don't hold on to it; rulers are one-shot, but someone might keep one around
+            memo = null;
+            return result;
         }
     }
 
@@ -191,14 +219,57 @@ public class EditDistance {
         }
     }
 
-    public static int measure(String s, String t) {
-        DebugHelper.getInstance().hit("EditDistance.measure");
+    /** Counts every distance calculation. */
+    private static final DebugHelper.Counter MEASURE_COUNTER = DebugHelper.getInstance().counter("EditDistance.measure");
+    /** How long each distance calculation takes, in nanoseconds. */
+    private static final DebugHelper.Histogram MEASURE_TIME = DebugHelper.getInstance().histogram("EditDistance.measure/time");
 
+    public static int measure(String s, String t) {
         AbstractRuler ruler = ConfigMenu.USE_FAST_EDIT_DISTANCE
             ? new IterativeRuler(s, t)
             : new RecursiveRuler(s, t)
         ;
 
-        return ruler.measure();
+        return measureWith(ruler);
+    }
+
+    /**
+     * Same as measure(), but always uses the fastest ruler regardless of the config.
+     * Results are identical either way; this is for callers that measure a LOT of pairs.
+     * @param s the first string
+     * @param t the second string
+     * @return the edit distance
+     */
+    public static int measureFast(String s, String t) {
+        return measureWith(new IterativeRuler(s, t));
+    }
+
+    /**
+     * Run a ruler, and record the stats/trace/JFR events for it.
+     * @param ruler The ruler to measure with
+     * @return the edit distance
+     */
+    private static int measureWith(AbstractRuler ruler) {
+        MEASURE_COUNTER.hit();
+        SearchTrace trace = SearchTrace.current();
+        if (trace != null) trace.distance(ruler.s.length(), ruler.t.length());
+
+        DistanceComputationEvent event = DistanceComputationEvent.sample();
+        if (event != null) event.begin();
+        long start = System.nanoTime();
+
+        int result = ruler.measure();
+
+        MEASURE_TIME.record(System.nanoTime() - start);
+        if (event != null) {
+            event.end();
+            event.lengthA = ruler.s.length();
+            event.lengthB = ruler.t.length();
+            event.cells = (long) ruler.s.length() * ruler.t.length();
+            event.ruler = ruler.getClass().getSimpleName();
+            event.commit();
+        }
+
+        return result;
     }
 }
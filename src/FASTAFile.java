@@ -1,35 +1,98 @@
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.List;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A Node representing a FASTA protein sequence
  */
 public class FASTAFile extends VantagePointTree.Node {
     /**
-     * To run in a reasonable amount of time, cache some of the files.
+     * To run in a reasonable amount of time, cache some of the sequences.
      * This can skew the timing results quite a bit though so it is frequently cleared.
+     * It isn't thread-safe on its own, so lock it to use it (sharded indexes read sequences from several threads).
      */
-    private static LossyHashMap<String, List<String>> CACHE = new LossyHashMap<>(1024);
+    private static final LossyHashMap<String, String> CACHE = new LossyHashMap<>(1024);
 
+    private static final DebugHelper.Counter PINNED_HITS = DebugHelper.getInstance().counter("FASTAFile.pinned/hit");
+    private static final DebugHelper.Counter CACHE_HITS  = DebugHelper.getInstance().counter("FASTAFile.cache/hit");
+    private static final DebugHelper.Counter CACHE_MISSES = DebugHelper.getInstance().counter("FASTAFile.cache/miss");
+    private static final DebugHelper.Counter PREFETCH_ISSUED = DebugHelper.getInstance().counter("FASTAFile.prefetch/issued");
+    private static final DebugHelper.Counter PREFETCH_HITS   = DebugHelper.getInstance().counter("FASTAFile.prefetch/hit");
+    private static final DebugHelper.Counter PREFETCH_WAITS  = DebugHelper.getInstance().counter("FASTAFile.prefetch/wait");
+
+    /** The number of threads reading sequences ahead of the search (see prefetch()). */
+    private static final int PREFETCH_THREADS = 4;
+    /** The most sequences to have read ahead (or being read) at once, so ones nobody asks for don't pile up. */
+    private static final int MAX_PREFETCHED = 1024;
+
+    /**
+     * Sequences read (or being read) ahead of time, keyed by toString().
+     * These are kept apart from CACHE, so the prefetch threads never wait on its lock; getFASTAData() moves them over when they're asked for.
+     */
+    private static final ConcurrentHashMap<String, CompletableFuture<FASTAParser.Record>> PREFETCHED = new ConcurrentHashMap<>();
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "prefetch");
+        // don't keep the app running just for these
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Clear the cache, and drop anything read ahead. Pinned sequences (see pin()) stay.
+     */
     public static void clearCache() {
-        CACHE.clear();
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+        PREFETCHED.clear();
     }
 
     /** The file path. */
     protected final String location;
-    /** The FASTA description. */
-    private String description = null;
+    /** Where the description starts in the file, or -1 if we haven't loaded it yet. */
+    private long descriptionOffset = -1;
     /** The length of the sequence. */
     private int length = 0;
+    /** The content hash of the sequence. */
+    private long sequenceHash = 0;
+    /** The sequence, if it was handed to us already parsed (see preload()). */
+    private String preloaded = null;
+    /** The description, if the preloaded sequence has to stay because it can't be read again (so neither can this). */
+    private String permanentDescription = null;
+    /** The sequence, if it's pinned in memory (see pin()). Unlike the cache, this is only cleared by unpin(). */
+    private volatile String pinned = null;
 
     public FASTAFile(String location) {
         this.location = location;
     }
 
-    protected List<String> getLines() throws IOException {
-        return Files.readAllLines(new File(location).toPath());
+    /**
+     * Parse this record from the file.
+     * @param parser The parser to use
+     * @return the record
+     * @throws IOException if it couldn't be read
+     */
+    protected FASTAParser.Record read(FASTAParser parser) throws IOException {
+        try (FASTAParser.Source source = FileChannelPool.getInstance().acquire(location)) {
+            return parser.parseFirst(source, 0);
+        }
+    }
+
+    /**
+     * Read just this record's description from the file.
+     * @param parser The parser to use
+     * @param descriptionOffset Where the description starts
+     * @return the description
+     * @throws IOException if it couldn't be read
+     */
+    protected String readDescription(FASTAParser parser, long descriptionOffset) throws IOException {
+        try (FASTAParser.Source source = FileChannelPool.getInstance().acquire(location)) {
+            return parser.readDescription(source, descriptionOffset);
+        }
     }
 
     /**
@@ -38,49 +101,181 @@ public class FASTAFile extends VantagePointTree.Node {
      * @throws IOException
      */
     public String getFASTAData() throws IOException {
-        List<String> lines;
+        SearchTrace trace = SearchTrace.current();
 
-        // Are the lines in the cache?
-        if (CACHE != null && CACHE.containsKey(location)) {
+        // (read it once, in case someone unpins it in the meantime)
+        String pinnedSequence = pinned;
+        if (pinnedSequence != null) {
+            PINNED_HITS.hit();
+            if (trace != null) {
+                trace.sequenceCacheHits++;
+                trace.pinnedHits++;
+            }
+            return pinnedSequence;
+        }
+
+        if (preloaded != null) {
+            if (trace != null) trace.sequenceCacheHits++;
+            return preloaded;
+        }
+
+        // Is the sequence in the cache? (only if we've filled in our fields already)
+        // keyed by toString(), since every record in a .multifasta file has the same location
+        String sequence = isLoaded() ? cacheGet() : null;
+        if (sequence != null) {
             // Yes!
-            lines = CACHE.get(location);
-        } else {
-            // No :(
-            lines = this.getLines();
-            if (CACHE != null) CACHE.put(location, lines);
+            CACHE_HITS.hit();
+            if (trace != null) trace.sequenceCacheHits++;
+            return sequence;
         }
 
-        // get the description
-        if (lines.get(0).startsWith(">")) {
-            description = lines.get(0).substring(1);
+        // No :(
+        CACHE_MISSES.hit();
+
+        // but maybe it's been read ahead of time
+        FASTAParser.Record record = isLoaded() ? takePrefetched() : null;
+        if (record != null) {
+            if (trace != null) trace.prefetchHits++;
         } else {
-            throw new IOException("no description!");
+            record = read(FASTAParser.get());
+        }
+        if (!isLoaded()) fill(record);
+        synchronized (CACHE) {
+            CACHE.put(toString(), record.sequence);
+        }
+
+        if (trace != null) {
+            trace.sequenceCacheMisses++;
+            trace.bytesRead += record.end - record.offset;
         }
 
-        StringBuffer buffer = new StringBuffer();
+        return record.sequence;
+    }
 
-        // add ALL the things (amino acids)!
-        for (int i = 1; i < lines.size(); i++) {
-            String line = lines.get(i).toUpperCase();
-            if (line.startsWith(">")) {
-                // start of a new sequence
-                break;
-            }
+    /**
+     * @return the cached sequence, or null if it isn't cached
+     */
+    private String cacheGet() {
+        synchronized (CACHE) {
+            return CACHE.get(toString());
+        }
+    }
+
+    /**
+     * Start reading the sequence in the background, since it's probably going to be needed soon
+     * (e.g. it's near the front of the search queue). The next getFASTAData() picks it up,
+     * waiting for the read to finish if it has to, so the disk and the distance calculations can overlap.
+     * Safe to call from any thread; if several ask for the same record at once, it's still only read once.
+     */
+    @Override
+    void prefetch() {
+        // only bother if it would actually have to be read, and we can tell which record it is
+        if (pinned != null || preloaded != null || !isLoaded() || cacheGet() != null) {
+            return;
+        }
 
-            for (int j = 0; j < line.length(); j++) {
-                char c = line.charAt(j);
+        // (the size is only approximate with other threads at it, but it's just there to stop a pile-up)
+        if (PREFETCHED.size() >= MAX_PREFETCHED) {
+            return;
+        }
 
-                if ('A' <= c && c <= 'Z') {
-                    // only copy peptides (i.e. letters)
-                    buffer.append(c);
+        PREFETCHED.computeIfAbsent(toString(), key -> {
+            PREFETCH_ISSUED.hit();
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(FASTAParser.get());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            }, PREFETCHER);
+        });
+    }
+
+    /**
+     * Take the record read ahead of time by prefetch(), if there is one.
+     * @return the record, or null if it wasn't prefetched (or the read failed; then it should just be read again)
+     */
+    private FASTAParser.Record takePrefetched() {
+        CompletableFuture<FASTAParser.Record> future = PREFETCHED.remove(toString());
+        if (future == null) {
+            return null;
+        }
+
+        if (!future.isDone()) {
+            PREFETCH_WAITS.hit();
+        }
+
+        try {
+            FASTAParser.Record record = future.join();
+            PREFETCH_HITS.hit();
+            return record;
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fill in the lazily loaded fields from a parsed record, without keeping the sequence.
+     * @param record The record, parsed from this node's file
+     */
+    void fill(FASTAParser.Record record) {
+        fill(record.descriptionOffset, record.sequence.length(), record.sequenceHash);
+    }
+
+    /**
+     * Fill in the lazily loaded fields, e.g. from an index.
+     * @param descriptionOffset Where the description starts in the file
+     * @param length The length of the sequence
+     * @param sequenceHash The content hash of the sequence
+     */
+    void fill(long descriptionOffset, int length, long sequenceHash) {
+        this.descriptionOffset = descriptionOffset;
+        this.length = length;
+        this.sequenceHash = sequenceHash;
+    }
+
+    /**
+     * Fill in everything from an already-parsed record, so it doesn't have to be read again.
+     * The sequence is kept until release() is called.
+     * @param record The record, parsed from this node's file
+     * @param permanent If true, the sequence and description are kept for good (for records that can't be read again on their own)
+     */
+    void preload(FASTAParser.Record record, boolean permanent) {
+        fill(record);
+        preloaded = record.sequence;
+        if (permanent) permanentDescription = record.description;
+    }
+
+    /**
+     * Keep the sequence in memory for good, e.g. because it's near the root of the tree.
+     * @return the size of the sequence, in bytes (residues are Latin-1, so one byte each)
+     */
+    @Override
+    long pin() {
+        if (pinned != null) {
+            return 0;
         }
 
-        String result = buffer.toString();
-        length = result.length();
+        try {
+            pinned = getFASTAData();
+        } catch (IOException e) {
+            // it'll just be read from disk like normal (and fail there too, probably)
+            return 0;
+        }
 
-        return result;
+        return pinned.length();
+    }
+
+    @Override
+    void unpin() {
+        pinned = null;
+    }
+
+    /**
+     * Forget the preloaded sequence; after this, it's read from disk (through the cache) like normal.
+     */
+    void release() {
+        if (permanentDescription == null) preloaded = null;
     }
 
     /**
@@ -107,7 +302,7 @@ public class FASTAFile extends VantagePointTree.Node {
      * @return true if we've already filled out the lazily loaded fields; false otherwise
      */
     private boolean isLoaded() {
-        return description != null;
+        return descriptionOffset >= 0;
     }
 
     /**
@@ -119,14 +314,18 @@ public class FASTAFile extends VantagePointTree.Node {
     }
 
     /**
-     * Get the in-file protein description
+     * Get the in-file protein description.
+     * It isn't kept in memory (there can be millions of these), so this reads just the header line each time.
      * @return string description of the sequence
      * @throws IOException if the file could not be loaded
      */
     public String getDescription() throws IOException {
         load();
-        
-        return description;
+
+        if (permanentDescription != null) {
+            return permanentDescription;
+        }
+        return readDescription(FASTAParser.get(), descriptionOffset);
     }
 
     /**
@@ -141,6 +340,21 @@ public class FASTAFile extends VantagePointTree.Node {
         return length;
     }
 
+    /**
+     * Get the content hash of the sequence, hashed when the file is first loaded.
+     * @return the hash
+     */
+    @Override
+    long getSequenceHash() {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return sequenceHash;
+    }
+
     /**
      * Return a pretty human-friendly String including the length and protein description
      * @return a human-friendly string
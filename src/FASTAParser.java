@@ -0,0 +1,455 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A streaming FASTA parser that works straight on the bytes.
+ *
+ * Each record is read in a single pass through a reusable buffer: the header is copied out,
+ * and the residues go through a lookup table that upper-cases letters and drops everything else
+ * (line breaks, digits, gaps...), the same as the old line-by-line parsing did.
+ * No per-line Strings are made, so a parse costs two allocations: the description and the sequence.
+ *
+ * A parser reuses its buffers, so it isn't thread-safe. Use get() for a per-thread one.
+ *
+ * Files are read through a Source, so gzipped files work the same way as plain ones
+ * (positions are always positions in the uncompressed file).
+ */
+public class FASTAParser {
+    /** A parser for each thread. */
+    private static final ThreadLocal<FASTAParser> PARSERS = ThreadLocal.withInitial(FASTAParser::new);
+
+    /** For each byte, the residue it stands for (upper case), or 0 if it isn't one. */
+    private static final byte[] RESIDUES = new byte[256];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            RESIDUES[c] = (byte) c;
+            RESIDUES[Character.toLowerCase(c)] = (byte) c;
+        }
+    }
+
+    /**
+     * @return this thread's parser
+     */
+    public static FASTAParser get() {
+        return PARSERS.get();
+    }
+
+    /**
+     * A parsed record.
+     */
+    public static class Record {
+        /** Where the record (its '>') starts in the file. */
+        public final long offset;
+        /** Where the record ends in the file (the next '>' or the end of the file). */
+        public final long end;
+        /** Where the description starts in the file (just after the '>'). */
+        public final long descriptionOffset;
+        /** Where the sequence starts in the file (just after the header line). */
+        public final long sequenceOffset;
+        /** Residues per line, or 0 if the lines aren't laid out regularly enough to seek into (see readSequence()). */
+        public final int lineBases;
+        /** Bytes per line, including the line break, or 0 like lineBases. */
+        public final int lineWidth;
+        /** The description, without the '>' (null if it wasn't read). */
+        public final String description;
+        /** The residues, upper case. */
+        public final String sequence;
+        /** The content hash of the sequence, the same as Util.hashSequence(sequence). */
+        public final long sequenceHash;
+
+        Record(long offset, long end, long sequenceOffset, int lineBases, int lineWidth, String description, String sequence, long sequenceHash) {
+            this.offset = offset;
+            this.end = end;
+            this.descriptionOffset = offset + 1;
+            this.sequenceOffset = sequenceOffset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+            this.description = description;
+            this.sequence = sequence;
+            this.sequenceHash = sequenceHash;
+        }
+    }
+
+    /**
+     * Works out whether a record's sequence lines all have the same width (apart from the last one),
+     * and are nothing but residues, like samtools faidx needs. Only looks at line breaks, so it's cheap.
+     */
+    private static class LineLayout {
+        long sequenceOffset;
+        long lineStart;
+        int lineStartResidues;
+        int lineBases;
+        int lineWidth;
+        boolean regular;
+        /** Whether we've seen a short (i.e. last) line already. */
+        boolean ended;
+
+        void reset(long sequenceOffset) {
+            this.sequenceOffset = sequenceOffset;
+            lineStart = sequenceOffset;
+            lineStartResidues = 0;
+            lineBases = 0;
+            lineWidth = 0;
+            regular = true;
+            ended = false;
+        }
+
+        /**
+         * @param end The position just past the end of the line (and its line break, if any)
+         * @param residueCount The residues in the record so far
+         * @param lineBreak Whether the line ended with a line break
+         */
+        void endLine(long end, int residueCount, boolean lineBreak) {
+            long bytes = end - lineStart - (lineBreak ? 1 : 0);
+            int bases = residueCount - lineStartResidues;
+            lineStart = end;
+            lineStartResidues = residueCount;
+
+            if (!regular) {
+                return;
+            } else if (bases != bytes) {
+                // something other than residues on this line (like '\r' or '*')
+                regular = false;
+            } else if (bases == 0) {
+                ended = true;
+            } else if (lineBases == 0) {
+                lineBases = bases;
+                lineWidth = bases + 1;
+                ended = !lineBreak;
+            } else if (ended || bases > lineBases) {
+                regular = false;
+            } else {
+                ended = bases < lineBases || !lineBreak;
+            }
+        }
+    }
+
+    /**
+     * Somewhere to read FASTA bytes from.
+     */
+    public interface Source extends Closeable {
+        /**
+         * Read bytes into the buffer, like FileChannel.read(ByteBuffer, long).
+         * @param buffer Where to put them (from its position, which is moved along)
+         * @param position Where to read from, in the uncompressed file
+         * @return the number of bytes read, or -1 at the end of the file
+         * @throws IOException if they couldn't be read
+         */
+        int read(ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * @return true if any position can be read at any time; false if reads have to go forwards (e.g. through plain gzip)
+         */
+        default boolean isSeekable() {
+            return true;
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return true if open(file) gives a seekable Source, i.e. records can be read one at a time
+     */
+    public static boolean isSeekable(File file) {
+        return !file.getName().endsWith(".gz") || BlockGzip.isBlockCompressed(file);
+    }
+
+    /**
+     * Open a file for parsing: plain, block-gzipped (seekable) or plain gzipped (forwards only).
+     * @param file The file
+     * @return a Source for it; close it when you're done
+     * @throws IOException if it couldn't be opened
+     */
+    public static Source open(File file) throws IOException {
+        if (!file.getName().endsWith(".gz")) {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return new Source() {
+                @Override
+                public int read(ByteBuffer buffer, long position) throws IOException {
+                    return channel.read(buffer, position);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        if (BlockGzip.isBlockCompressed(file)) {
+            return BlockGzip.open(file);
+        }
+
+        InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+        return new Source() {
+            /** How far into the uncompressed file we are. */
+            private long consumed = 0;
+
+            @Override
+            public int read(ByteBuffer buffer, long position) throws IOException {
+                if (position < consumed) {
+                    throw new IOException(file + " isn't block-compressed, so it can only be read forwards");
+                }
+                while (consumed < position) {
+                    long skipped = in.skip(position - consumed);
+                    if (skipped <= 0) return -1;
+                    consumed += skipped;
+                }
+
+                int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                    consumed += read;
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isSeekable() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Something that wants parsed records.
+     */
+    public interface Sink {
+        void accept(Record record) throws IOException;
+    }
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private final LineLayout layout = new LineLayout();
+    private byte[] header = new byte[256];
+    private byte[] residues = new byte[4096];
+
+    /**
+     * Parse the records in a file, starting from some position.
+     * The first thing there (apart from blank lines) has to be a '>'.
+     * @param source The file
+     * @param start Where to start
+     * @param firstOnly If true, stop after the first record (like a .fasta file, where anything after that is ignored)
+     * @param sink Gets each record
+     * @return the number of bytes read
+     * @throws IOException if the file couldn't be read, or doesn't start with a header
+     */
+    public long parse(Source source, long start, boolean firstOnly, Sink sink) throws IOException {
+        final int before = 0, inHeader = 1, inSequence = 2;
+
+        int state = before;
+        boolean lineStart = true;
+        long position = start;
+
+        long recordOffset = -1;
+        int headerLength = 0;
+        int residueCount = 0;
+        long hash = 0;
+
+        while (true) {
+            buffer.clear();
+            int read = source.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+
+            byte[] bytes = buffer.array();
+
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+
+                if (state == inSequence) {
+                    if (lineStart && b == '>') {
+                        // the start of the next record
+                        if (position + i > layout.lineStart) layout.endLine(position + i, residueCount, false);
+                        sink.accept(makeRecord(recordOffset, position + i, headerLength, residueCount, hash));
+                        if (firstOnly) {
+                            return position + i - start;
+                        }
+                        state = before;
+                    } else {
+                        lineStart = b == '\n';
+                        if (lineStart) layout.endLine(position + i + 1, residueCount, true);
+                        byte residue = RESIDUES[b & 0xff];
+
+                        if (residue != 0) {
+                            if (residueCount == residues.length) residues = grow(residues);
+                            residues[residueCount++] = residue;
+                            hash ^= residue;
+                            hash *= 0x100000001b3L;
+                        }
+                        continue;
+                    }
+                }
+
+                if (state == before) {
+                    if (b == '>') {
+                        state = inHeader;
+                        recordOffset = position + i;
+                        headerLength = 0;
+                        residueCount = 0;
+                        hash = 0xcbf29ce484222325L;
+                    } else if (b != '\n' && b != '\r') {
+                        throw new IOException("no description!");
+                    }
+                } else if (b == '\n') {
+                    state = inSequence;
+                    lineStart = true;
+                    layout.reset(position + i + 1);
+                } else {
+                    if (headerLength == header.length) header = grow(header);
+                    header[headerLength++] = b;
+                }
+            }
+
+            position += read;
+        }
+
+        if (state == before) {
+            // an empty file is only a problem if we wanted a record out of it
+            if (firstOnly) throw new IOException("no description!");
+        } else {
+            if (state == inHeader) layout.reset(position);
+            if (position > layout.lineStart) layout.endLine(position, residueCount, false);
+            sink.accept(makeRecord(recordOffset, position, headerLength, residueCount, hash));
+        }
+
+        return position - start;
+    }
+
+    /**
+     * Parse the record at some position.
+     * @param source The file
+     * @param start Where the record starts
+     * @return the record
+     * @throws IOException if the file couldn't be read, or there's no record there
+     */
+    public Record parseFirst(Source source, long start) throws IOException {
+        Record[] first = new Record[1];
+        parse(source, start, true, record -> first[0] = record);
+        return first[0];
+    }
+
+    /**
+     * Read just a description, without parsing the sequence after it.
+     * @param source The file
+     * @param descriptionOffset Where the description starts (just after the '>')
+     * @return the description
+     * @throws IOException if the file couldn't be read
+     */
+    public String readDescription(Source source, long descriptionOffset) throws IOException {
+        int headerLength = 0;
+        long position = descriptionOffset;
+
+        while (true) {
+            buffer.clear();
+            int read = source.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    return decodeHeader(headerLength);
+                }
+                if (headerLength == header.length) header = grow(header);
+                header[headerLength++] = bytes[i];
+            }
+
+            position += read;
+        }
+
+        return decodeHeader(headerLength);
+    }
+
+    /**
+     * Read a sequence straight from its position, without scanning for the end of the record.
+     * This only works if every line but the last has the same number of residues and nothing else,
+     * which is what Record.lineBases and lineWidth say.
+     * @param source The file
+     * @param sequenceOffset Where the sequence starts
+     * @param length The number of residues
+     * @param lineBases Residues per line
+     * @param lineWidth Bytes per line, including the line break
+     * @return the record, without its description (and since we don't know where the header is, offset is where the sequence starts)
+     * @throws IOException if the file couldn't be read, or doesn't match the layout
+     */
+    public Record readSequence(Source source, long sequenceOffset, int length, int lineBases, int lineWidth) throws IOException {
+        if (residues.length < length) residues = new byte[Math.max(length, residues.length * 2)];
+
+        long hash = 0xcbf29ce484222325L;
+        int count = 0;
+        long position = sequenceOffset;
+
+        while (count < length) {
+            // read as many whole lines as fit in the buffer (at least one)
+            int lines = Math.max(1, buffer.capacity() / lineWidth);
+            int remaining = length - count;
+            int fullLines = (remaining - 1) / lineBases;
+            long needed = (long) fullLines * lineWidth + remaining - (long) fullLines * lineBases;
+            int want = (int) Math.min((long) lines * lineWidth, needed);
+            ByteBuffer target = want <= buffer.capacity() ? buffer : ByteBuffer.allocate(want);
+            target.clear().limit(want);
+
+            while (target.hasRemaining()) {
+                if (source.read(target, position + target.position()) <= 0) {
+                    throw new IOException("sequence runs past the end of the file");
+                }
+            }
+
+            byte[] bytes = target.array();
+            for (int line = 0; line < want && count < length; line += lineWidth) {
+                for (int i = line; i < line + lineBases && i < want && count < length; i++) {
+                    byte residue = RESIDUES[bytes[i] & 0xff];
+                    if (residue == 0) {
+                        throw new IOException("sequence doesn't match its index");
+                    }
+                    residues[count++] = residue;
+                    hash ^= residue;
+                    hash *= 0x100000001b3L;
+                }
+            }
+
+            position += want;
+        }
+
+        String sequence = new String(residues, 0, length, StandardCharsets.ISO_8859_1);
+        return new Record(sequenceOffset, position, sequenceOffset, lineBases, lineWidth, null, sequence, hash);
+    }
+
+    private Record makeRecord(long offset, long end, int headerLength, int residueCount, long hash) {
+        // residues are all ASCII, so Latin-1 is just a copy
+        String sequence = new String(residues, 0, residueCount, StandardCharsets.ISO_8859_1);
+        boolean regular = layout.regular && layout.lineBases > 0;
+
+        return new Record(
+            offset, end, layout.sequenceOffset, regular ? layout.lineBases : 0, regular ? layout.lineWidth : 0,
+            decodeHeader(headerLength), sequence, hash
+        );
+    }
+
+    private String decodeHeader(int headerLength) {
+        // Windows line endings
+        if (headerLength > 0 && header[headerLength - 1] == '\r') headerLength--;
+        return new String(header, 0, headerLength, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] grow(byte[] array) {
+        byte[] bigger = new byte[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+}
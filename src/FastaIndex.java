@@ -0,0 +1,236 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An offset index for a .multifasta file, kept next to it as a .multifasta.fai sidecar.
+ * For block-compressed .multifasta.gz files, offsets are in the uncompressed file.
+ *
+ * It's like the .fai files samtools faidx makes: for every record, the name, sequence length,
+ * where the sequence starts, and how its lines are laid out. With that, a record's sequence can be
+ * read with one positional read, without scanning for the start of the record or the end of each line.
+ * We also keep where the header starts and the sequence hash, so nodes can be made without reading anything.
+ *
+ * The first line records the size and modification time of the .multifasta file,
+ * so a stale index (the file was replaced) is noticed and rebuilt instead of trusted.
+ */
+public class FastaIndex {
+    private static final DebugHelper.Counter HITS = DebugHelper.getInstance().counter("FastaIndex.hit");
+    private static final DebugHelper.Counter BUILDS = DebugHelper.getInstance().counter("FastaIndex.build");
+
+    /** Marks the first line of the sidecar, and its version. */
+    private static final String MAGIC = "#ProteinSearch-fai\t1";
+
+    /**
+     * One record in the file.
+     */
+    public static class Entry {
+        /** The first word of the description. */
+        public final String name;
+        /** The number of residues. */
+        public final int length;
+        /** Where the sequence starts. */
+        public final long sequenceOffset;
+        /** Residues per line, or 0 if the lines are irregular (then the record has to be parsed normally). */
+        public final int lineBases;
+        /** Bytes per line, including the line break. */
+        public final int lineWidth;
+        /** Where the record (its '>') starts. */
+        public final long offset;
+        /** The content hash of the sequence. */
+        public final long sequenceHash;
+
+        Entry(String name, int length, long sequenceOffset, int lineBases, int lineWidth, long offset, long sequenceHash) {
+            this.name = name;
+            this.length = length;
+            this.sequenceOffset = sequenceOffset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+            this.offset = offset;
+            this.sequenceHash = sequenceHash;
+        }
+
+        /**
+         * @param record A parsed record
+         * @return its entry
+         */
+        static Entry of(FASTAParser.Record record) {
+            String name = record.description.split("\\s", 2)[0];
+            return new Entry(
+                name, record.sequence.length(), record.sequenceOffset,
+                record.lineBases, record.lineWidth, record.offset, record.sequenceHash
+            );
+        }
+    }
+
+    /** The indexed file. */
+    private final File file;
+    /** Its size when it was indexed. */
+    private final long size;
+    /** Its modification time when it was indexed. */
+    private final long modified;
+    /** The records, in file order. */
+    private final List<Entry> entries;
+
+    FastaIndex(File file, long size, long modified, List<Entry> entries) {
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the records, in file order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return whether the indexed file still looks the same as when it was indexed
+     */
+    public boolean isValid() {
+        return file.length() == size && file.lastModified() == modified;
+    }
+
+    /**
+     * @param file A .multifasta file
+     * @return its sidecar index file
+     */
+    public static File getSidecar(File file) {
+        return new File(file.getPath() + ".fai");
+    }
+
+    /**
+     * Make a node for every record, without reading the .multifasta file.
+     * @return the nodes, in file order
+     */
+    public List<MultiFASTAFile> getNodes() {
+        List<MultiFASTAFile> nodes = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            nodes.add(new MultiFASTAFile(file.getAbsolutePath(), entry));
+        }
+        return nodes;
+    }
+
+    /**
+     * Read the sidecar index for a file.
+     * @param file A .multifasta file
+     * @return the index, or null if there isn't one or it's out of date
+     */
+    public static FastaIndex read(File file) {
+        File sidecar = getSidecar(file);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(sidecar))) {
+            String[] first = reader.readLine().split("\t");
+            if (first.length != 4 || !MAGIC.equals(first[0] + "\t" + first[1])) {
+                return null;
+            }
+
+            FastaIndex index = new FastaIndex(file, Long.parseLong(first[2]), Long.parseLong(first[3]), new ArrayList<>());
+            if (!index.isValid()) {
+                return null;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                index.entries.add(new Entry(
+                    fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                    Long.parseLong(fields[5]), Long.parseUnsignedLong(fields[6], 16)
+                ));
+            }
+
+            HITS.hit();
+            return index;
+        } catch (IOException | RuntimeException e) {
+            // a broken index is just a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Build an index from records that were already parsed (e.g. while loading them).
+     * @param file The .multifasta file they came from
+     * @param size Its size before parsing
+     * @param modified Its modification time before parsing
+     * @param records Its records, in file order
+     * @return the index
+     */
+    public static FastaIndex fromRecords(File file, long size, long modified, List<Entry> records) {
+        BUILDS.hit();
+        return new FastaIndex(file, size, modified, records);
+    }
+
+    /**
+     * Index a file by parsing the whole thing.
+     * @param file A .multifasta file
+     * @return the index
+     * @throws IOException if the file couldn't be read
+     */
+    public static FastaIndex build(File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        List<Entry> entries = new ArrayList<>();
+
+        try (FASTAParser.Source source = FASTAParser.open(file)) {
+            FASTAParser.get().parse(source, 0, false, record -> entries.add(Entry.of(record)));
+        }
+
+        return fromRecords(file, size, modified, entries);
+    }
+
+    /**
+     * Get the index for a file, from its sidecar if that's up to date, otherwise by building (and saving) it.
+     * @param file A .multifasta file
+     * @return the index
+     * @throws IOException if the file couldn't be read
+     */
+    public static FastaIndex load(File file) throws IOException {
+        FastaIndex index = read(file);
+
+        if (index == null) {
+            index = build(file);
+            index.tryWrite();
+        }
+
+        return index;
+    }
+
+    /**
+     * Save this index as the file's sidecar. Not being able to (e.g. a read-only folder) isn't an error;
+     * the index just gets rebuilt next time.
+     * @return true if it was saved
+     */
+    public boolean tryWrite() {
+        File sidecar = getSidecar(file);
+        File temporary = new File(sidecar.getPath() + ".tmp");
+
+        try (PrintWriter writer = new PrintWriter(temporary)) {
+            writer.printf("%s\t%d\t%d%n", MAGIC, size, modified);
+            for (Entry entry : entries) {
+                writer.printf(
+                    "%s\t%d\t%d\t%d\t%d\t%d\t%s%n",
+                    entry.name, entry.length, entry.sequenceOffset, entry.lineBases, entry.lineWidth,
+                    entry.offset, Long.toHexString(entry.sequenceHash)
+                );
+            }
+
+            if (writer.checkError()) throw new IOException("couldn't write " + temporary);
+        } catch (IOException e) {
+            temporary.delete();
+            return false;
+        }
+
+        // so a half-written index is never picked up
+        return temporary.renameTo(sidecar);
+    }
+}
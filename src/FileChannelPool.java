@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of open files, shared by every node.
+ *
+ * Opening a file for every read is slow, but keeping every file open runs out of descriptors
+ * (ulimit -n is often 1024) once there are tens of thousands of container files. So we keep up to
+ * ConfigMenu.MAX_OPEN_FILES open and close the least recently used one when we need room.
+ *
+ * Files are borrowed with acquire() and given back by closing the Lease, so a file is never closed
+ * while someone is reading it; if every file is in use, the pool goes over its limit for a bit.
+ * Reads are positional (FileChannel.read(ByteBuffer, long), or BlockGzip's synchronized reader),
+ * so any number of threads can share one open file without fighting over a file position.
+ */
+public class FileChannelPool {
+    private static final FileChannelPool INSTANCE = new FileChannelPool();
+
+    private static final DebugHelper.Counter HITS = DebugHelper.getInstance().counter("FileChannelPool.hit");
+    private static final DebugHelper.Counter OPENS = DebugHelper.getInstance().counter("FileChannelPool.open");
+    private static final DebugHelper.Counter EVICTIONS = DebugHelper.getInstance().counter("FileChannelPool.evict");
+
+    /**
+     * @return the shared pool
+     */
+    public static FileChannelPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * An open file, and how many leases it's out on.
+     */
+    private static class Entry {
+        final FASTAParser.Source source;
+        int leases = 0;
+        /** Whether it's been evicted; if so, the last lease to close closes it. */
+        boolean evicted = false;
+
+        Entry(FASTAParser.Source source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * A borrowed open file. Close it when you're done reading (this doesn't close the file).
+     */
+    public class Lease implements FASTAParser.Source {
+        private final Entry entry;
+        private boolean closed = false;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, long position) throws IOException {
+            return entry.source.read(buffer, position);
+        }
+
+        @Override
+        public boolean isSeekable() {
+            return entry.source.isSeekable();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                giveBack(entry);
+            }
+        }
+    }
+
+    /** Open files, least recently used first. */
+    private final LinkedHashMap<String, Entry> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Borrow an open file, opening it if it isn't already.
+     * Files that can only be read forwards (plain gzip) aren't pooled; each lease gets a fresh one.
+     * @param path The file
+     * @return the lease
+     * @throws IOException if the file couldn't be opened
+     */
+    public Lease acquire(String path) throws IOException {
+        synchronized (this) {
+            Entry entry = open.get(path);
+            if (entry != null) {
+                entry.leases++;
+                HITS.hit();
+                return new Lease(entry);
+            }
+        }
+
+        // open it without holding the lock (finding the blocks in a new .gz can take a while)
+        Entry opened = new Entry(FASTAParser.open(new File(path)));
+        OPENS.hit();
+
+        if (!opened.source.isSeekable()) {
+            opened.leases = 1;
+            opened.evicted = true;
+            return new Lease(opened);
+        }
+
+        Entry raced = null;
+        Entry entry;
+
+        synchronized (this) {
+            entry = open.get(path);
+            if (entry == null) {
+                entry = opened;
+                open.put(path, entry);
+            } else {
+                // someone else opened it first; use theirs
+                raced = opened;
+            }
+            // take the lease before evicting, so the file we just opened can't be the one that goes
+            entry.leases++;
+            if (raced == null) evict();
+        }
+
+        if (raced != null) raced.source.close();
+        return new Lease(entry);
+    }
+
+    /**
+     * Close least recently used files that nobody's using until we're back under the limit.
+     */
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Entry>> iterator = open.entrySet().iterator();
+
+        while (open.size() > ConfigMenu.MAX_OPEN_FILES && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+
+            if (entry.leases == 0) {
+                iterator.remove();
+                entry.evicted = true;
+                entry.source.close();
+                EVICTIONS.hit();
+            }
+        }
+    }
+
+    private void giveBack(Entry entry) throws IOException {
+        boolean close;
+
+        synchronized (this) {
+            entry.leases--;
+            close = entry.evicted && entry.leases == 0;
+            if (!close && open.size() > ConfigMenu.MAX_OPEN_FILES) evict();
+        }
+
+        if (close) entry.source.close();
+    }
+
+    /**
+     * @return the number of files open in the pool right now
+     */
+    public synchronized int size() {
+        return open.size();
+    }
+
+    /**
+     * Close every file nobody's using (e.g. before the files get replaced).
+     * @throws IOException if one couldn't be closed
+     */
+    public synchronized void clear() throws IOException {
+        Iterator<Entry> iterator = open.values().iterator();
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            entry.evicted = true;
+            if (entry.leases == 0) entry.source.close();
+        }
+    }
+}
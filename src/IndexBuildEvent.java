@@ -0,0 +1,26 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for (re)building the index (see ProteinSearch.buildIndex).
+ */
+@Name("ProteinSearch.IndexBuild")
+@Label("Index Build")
+@Category("ProteinSearch")
+@Description("Building the search index from a directory")
+public class IndexBuildEvent extends Event {
+    @Label("File Count")
+    public int fileCount;
+
+    @Label("Nodes")
+    public long nodes;
+
+    @Label("Distance Calls")
+    public long distanceCalls;
+
+    @Label("Engine")
+    public String engine;
+}
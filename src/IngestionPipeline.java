@@ -0,0 +1,442 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Loads the sequences for an index build, reading and parsing each file once, in parallel.
+ *
+ * It's a pipeline of stages connected by bounded queues, so a slow stage holds up the ones before it
+ * instead of letting everything pile up in memory:
+ *
+ *   1. one thread walks the folders (recursively) and queues up .fasta and .multifasta files (optionally .gz)
+ *   2. a pool of threads reads and parses them, straight from the bytes (see FASTAParser)
+ *   3. the same threads validate each record and turn it into a FASTAFile with its sequence preloaded
+ *   4. the index builder takes them from this Iterator, on its own thread
+ *
+ * A preloaded sequence is released as soon as the builder asks for the next one,
+ * so memory use stays about the same as loading files one by one. That means the pipeline only saves the first read:
+ * anything the builder needs again later (vantage points measured against every node below them, or every node
+ * when it buffers them all before building, like DeduplicatingIndex does) is read from disk again
+ * through FASTAFile's cache, like any other lazy node.
+ * Records in plain (not block-compressed) .multifasta.gz files can't be read again on their own, so they stay in memory.
+ * Files that fail are skipped and collected in getErrors(), instead of stopping the build.
+ * Records come out in whatever order the parsing threads finish them.
+ * If the builder stops early (e.g. it throws), close() the pipeline, or its threads stay stuck on the full queues.
+ *
+ * With onlyShard(), only one shard's share of the records is loaded (see ShardedIndex.shardOf()).
+ * Other shards' .fasta files are never opened. A .multifasta file's records are picked out of its FastaIndex;
+ * the file only has to be read through if it doesn't have an up-to-date one yet.
+ */
+public class IngestionPipeline implements Iterator<FASTAFile>, AutoCloseable {
+    private static final DebugHelper.Counter FILES = DebugHelper.getInstance().counter("IngestionPipeline.files");
+    private static final DebugHelper.Counter BYTES = DebugHelper.getInstance().counter("IngestionPipeline.bytes");
+    private static final DebugHelper.Counter RECORDS = DebugHelper.getInstance().counter("IngestionPipeline.records");
+    private static final DebugHelper.Counter ERRORS = DebugHelper.getInstance().counter("IngestionPipeline.errors");
+
+    /** How often to print progress, in nanoseconds. */
+    private static final long PROGRESS_INTERVAL = 1_000_000_000L;
+
+    /** Marks the end of a queue. */
+    private static final File END_OF_FILES = new File("");
+    private static final FASTAFile END_OF_RECORDS = new FASTAFile("");
+
+    /**
+     * A file (or record in a file) that couldn't be loaded.
+     */
+    public static class Failure {
+        /** The path, plus ":offset" for a record in a .multifasta file. */
+        public final String location;
+        /** What went wrong. */
+        public final Exception error;
+
+        Failure(String location, Exception error) {
+            this.location = location;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s", location, error.getMessage());
+        }
+    }
+
+    /** Files and folders to load. */
+    private final List<File> roots;
+    /** Shuffles the files before loading, or null to keep them in walk order. */
+    private final Random shuffle;
+    /** The number of parsing threads. */
+    private final int threads;
+    /** Only load the records in this shard (see onlyShard()). */
+    private int shard = 0;
+    /** The number of shards, or 1 to load everything. */
+    private int shards = 1;
+
+    /** Stage 1 -> 2. */
+    private final BlockingQueue<File> files = new ArrayBlockingQueue<>(1024);
+    /** Stage 3 -> 4. */
+    private final BlockingQueue<FASTAFile> records = new ArrayBlockingQueue<>(1024);
+    /** Everything that went wrong. */
+    private final ConcurrentLinkedQueue<Failure> errors = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong recordsLoaded = new AtomicLong();
+
+    /** The threads running stages 1-3, so close() can stop them. */
+    private final List<Thread> stages = new ArrayList<>();
+    private boolean started = false;
+    private boolean finished = false;
+    /** Set by close(); the stages stop (quietly) once they notice. */
+    private volatile boolean closed = false;
+    /** The record hasNext() found, waiting for next(). */
+    private FASTAFile lookahead = null;
+    /** The record the builder got last; its sequence is released once it asks for another. */
+    private FASTAFile handedOut = null;
+    private long lastProgress = System.nanoTime();
+
+    /**
+     * @param roots Files and folders to load (folders are walked recursively)
+     * @param shuffle Shuffles the files before loading (sequential file names are usually related proteins,
+     *                which makes for worse trees), or null to keep them in walk order
+     * @param threads The number of threads reading and parsing files
+     */
+    public IngestionPipeline(List<File> roots, Random shuffle, int threads) {
+        this.roots = roots;
+        this.shuffle = shuffle;
+        this.threads = threads;
+    }
+
+    /**
+     * A pipeline with the settings from ConfigMenu.
+     * @param roots Files and folders to load (folders are walked recursively)
+     */
+    public IngestionPipeline(List<File> roots) {
+        this(roots, new Random(), ConfigMenu.INGEST_THREADS);
+    }
+
+    /**
+     * Only load the records that belong in one shard (see ShardedIndex.shardOf()). Call this before using the iterator.
+     * @param shard The shard
+     * @param shards The number of shards
+     * @return this pipeline
+     */
+    public IngestionPipeline onlyShard(int shard, int shards) {
+        this.shard = shard;
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * @param fasta A node
+     * @return whether it belongs in our shard
+     */
+    private boolean inShard(FASTAFile fasta) {
+        return shards <= 1 || ShardedIndex.shardOf(fasta, shards) == shard;
+    }
+
+    /**
+     * @param file A file
+     * @return whether it's a .multifasta file (maybe gzipped)
+     */
+    private static boolean isMulti(File file) {
+        String name = file.getName();
+        return name.endsWith(".multifasta") || name.endsWith(".multifasta.gz");
+    }
+
+    /**
+     * @return the files and records that couldn't be loaded (complete once this iterator is used up)
+     */
+    public List<Failure> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /**
+     * @return the number of files read so far
+     */
+    public int getFileCount() {
+        return (int) filesRead.get();
+    }
+
+    /**
+     * @param file a file
+     * @return true if we know how to load it
+     */
+    private static boolean isLoadable(File file) {
+        String name = file.getName();
+        if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+        return name.endsWith(".fasta") || (ConfigMenu.LOAD_MULTIFASTA && name.endsWith(".multifasta"));
+    }
+
+    /**
+     * Start all the stages.
+     */
+    private void start() {
+        started = true;
+
+        startStage("ingest-walk", this::walk);
+
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++) {
+            startStage("ingest-parse-" + i, () -> {
+                try {
+                    parseAll();
+                } finally {
+                    // the last one out tells the builder we're done
+                    if (running.decrementAndGet() == 0) put(records, END_OF_RECORDS);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start a thread for a stage.
+     * @param name The thread name
+     * @param body What it does
+     */
+    private void startStage(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (RuntimeException e) {
+                // close() interrupts whatever the stage was waiting on, which ends up here; that's not an error
+                if (!closed) throw e;
+            }
+        }, name);
+        thread.setDaemon(true);
+        stages.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Stop loading, e.g. because the build failed and nothing is going to take the rest of the records.
+     * The stage threads are interrupted, and everything still queued up is dropped.
+     * Does nothing if the pipeline already finished (or never started); calling it again does nothing either.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        if (started && !finished) {
+            for (Thread stage : stages) {
+                stage.interrupt();
+            }
+            // in case one of them gets another in before it notices
+            files.clear();
+            records.clear();
+        }
+
+        if (handedOut != null) {
+            handedOut.release();
+            handedOut = null;
+        }
+        lookahead = null;
+        finished = true;
+    }
+
+    /**
+     * Stage 1: find the files to load.
+     */
+    private void walk() {
+        try {
+            List<File> found = new ArrayList<>();
+
+            for (File root : roots) {
+                if (root.isDirectory()) {
+                    try (Stream<Path> paths = Files.walk(root.toPath())) {
+                        paths.map(Path::toFile)
+                            .filter(f -> f.isFile() && isLoadable(f))
+                            .forEach(found::add);
+                    } catch (IOException | RuntimeException e) {
+                        fail(root.getPath(), e);
+                    }
+                } else if (root.isFile() && isLoadable(root)) {
+                    found.add(root);
+                }
+            }
+
+            // a .fasta file only has one record, named after the file, so other shards' files can be skipped unopened
+            found.removeIf(file -> !isMulti(file) && !inShard(new FASTAFile(file.getAbsolutePath())));
+
+            // shuffling needs every file up front, but paths are cheap compared to what's in the files
+            if (shuffle != null) Collections.shuffle(found, shuffle);
+
+            for (File file : found) {
+                if (closed) return;
+                put(files, file);
+            }
+        } finally {
+            put(files, END_OF_FILES);
+        }
+    }
+
+    /**
+     * Stages 2 and 3: read, parse and validate files until there aren't any left.
+     */
+    private void parseAll() {
+        while (!closed) {
+            File file = take(files);
+            if (file == END_OF_FILES) {
+                // let the other parsers see it too
+                put(files, END_OF_FILES);
+                return;
+            }
+
+            try {
+                parse(file);
+            } catch (IOException | RuntimeException e) {
+                fail(file.getAbsolutePath(), e);
+            }
+
+            filesRead.incrementAndGet();
+            FILES.hit();
+        }
+    }
+
+    /**
+     * Read a file in one pass, queueing up every record in it.
+     * A .fasta file only has one record; anything after the first is ignored, like FASTAFile does.
+     * A .multifasta file with an up-to-date FastaIndex isn't read at all; otherwise, it's indexed as it's parsed.
+     * @param file The file
+     * @throws IOException if the file can't be read
+     */
+    private void parse(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        boolean multi = isMulti(file);
+        // records in plain gzip can't be read again on their own, so they have to stay in memory
+        boolean seekable = FASTAParser.isSeekable(file);
+
+        if (multi && seekable) {
+            FastaIndex index = FastaIndex.read(file);
+            if (index != null) {
+                for (MultiFASTAFile fasta : index.getNodes()) emit(fasta, null, false);
+                return;
+            }
+        }
+
+        long size = file.length();
+        long modified = file.lastModified();
+        List<FastaIndex.Entry> entries = new ArrayList<>();
+
+        // gzipped files are streamed through java.util.zip
+        try (FASTAParser.Source source = FASTAParser.open(file)) {
+            long read = FASTAParser.get().parse(source, 0, !multi, record -> {
+                if (multi) {
+                    FastaIndex.Entry entry = FastaIndex.Entry.of(record);
+                    entries.add(entry);
+                    emit(new MultiFASTAFile(path, entry), record, !seekable);
+                } else {
+                    emit(new FASTAFile(path), record, false);
+                }
+            });
+            bytesRead.addAndGet(read);
+            BYTES.add(read);
+        }
+
+        if (multi && seekable) FastaIndex.fromRecords(file, size, modified, entries).tryWrite();
+    }
+
+    /**
+     * Stage 3: validate a record and queue it up for the builder.
+     * @param fasta The node for the record
+     * @param record The parsed record, to preload; or null if the node already knows everything but the sequence
+     * @param permanent Whether to keep the preloaded sequence after it's handed over
+     */
+    private void emit(FASTAFile fasta, FASTAParser.Record record, boolean permanent) {
+        if (closed || !inShard(fasta)) {
+            return;
+        }
+
+        if (record != null ? record.sequence.isEmpty() : fasta.getLength() == 0) {
+            fail(fasta.toString(), new IOException("empty sequence"));
+            return;
+        }
+
+        if (record != null) fasta.preload(record, permanent);
+        recordsLoaded.incrementAndGet();
+        RECORDS.hit();
+        put(records, fasta);
+    }
+
+    private void fail(String location, Exception error) {
+        errors.add(new Failure(location, error));
+        ERRORS.hit();
+    }
+
+    /**
+     * Stage 4: hand off records to the index builder.
+     */
+    @Override
+    public boolean hasNext() {
+        if (lookahead != null) return true;
+        if (finished) return false;
+        if (!started) start();
+
+        // the builder is done with the last one by now
+        if (handedOut != null) {
+            handedOut.release();
+            handedOut = null;
+        }
+
+        FASTAFile next = take(records);
+
+        if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL || next == END_OF_RECORDS) {
+            lastProgress = System.nanoTime();
+            System.out.printf(
+                "Loaded %d sequences from %d files (%.1f MB, %d errors)...\r",
+                recordsLoaded.get(), filesRead.get(), bytesRead.get() / 1e6, errors.size()
+            );
+        }
+
+        if (next == END_OF_RECORDS) {
+            finished = true;
+            System.out.println();
+            return false;
+        }
+
+        lookahead = next;
+        return true;
+    }
+
+    @Override
+    public FASTAFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        handedOut = lookahead;
+        lookahead = null;
+        return handedOut;
+    }
+
+    private static <E> void put(BlockingQueue<E> queue, E item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading files", e);
+        }
+    }
+
+    private static <E> E take(BlockingQueue<E> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading files", e);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * The k nearest neighbors of every sequence in a tree (not counting itself), e.g. for clustering.
+ *
+ * Doing n separate searches wastes most of the work, so the searches share it:
+ * - every distance measured (including every one measured during a search) goes into both nodes' neighbor lists,
+ *   since d(a, b) is d(b, a)
+ * - before a node is searched, up to k neighbors of its neighbors so far are measured against it
+ *   (like NN-descent; a neighbor's neighbor is probably a neighbor), and the k-th best distance it knows of
+ *   is the starting tau of its search, which then only has to look inside that radius
+ * Nodes are searched in tree order, so the ones searched around the same time tend to be close to each other,
+ * and their lists are already filled in by the time each one is searched.
+ * The search is still exact, so the graph is too.
+ *
+ * If the tree only has one node per distinct sequence (see DeduplicatingIndex), the graph still has every copy:
+ * each copy's nearest neighbors are its other copies (at distance 0), then every copy of its tree node's neighbors.
+ *
+ * The graph is saved in a compact binary file (see write()).
+ */
+public class KnnGraph {
+    private static final DebugHelper.Counter SEED_MEASURED = DebugHelper.getInstance().counter("KnnGraph.seed/measured");
+    private static final DebugHelper.Counter SEEDED        = DebugHelper.getInstance().counter("KnnGraph.seeded");
+
+    /** Marks the start of a graph file. ("KNNG") */
+    private static final int MAGIC = 0x4B4E4E47;
+    /** The version of the file format. */
+    private static final int VERSION = 1;
+
+    /** The name of each node (its toString()). */
+    private final String[] names;
+    /** neighbors[i] are the ids of node i's neighbors, nearest first; -1 past the end if there are fewer than k. */
+    private final int[][] neighbors;
+    /** distances[i][j] is the distance from node i to neighbors[i][j]. */
+    private final int[][] distances;
+
+    KnnGraph(String[] names, int[][] neighbors, int[][] distances) {
+        this.names = names;
+        this.neighbors = neighbors;
+        this.distances = distances;
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param id A node
+     * @return its name (its toString() when the graph was built)
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @param id A node
+     * @return the ids of its neighbors, nearest first (-1 past the end if there are fewer than k)
+     */
+    public int[] getNeighbors(int id) {
+        return neighbors[id];
+    }
+
+    /**
+     * @param id A node
+     * @return the distances to its neighbors, in the same order as getNeighbors()
+     */
+    public int[] getDistances(int id) {
+        return distances[id];
+    }
+
+    /**
+     * Builds a graph.
+     */
+    private static class Builder<T extends VantagePointTree.Node> {
+        private final int k;
+        /** The subtree rooted at each node, in pre-order. */
+        private final List<VantagePointTree<T>> subtrees = new ArrayList<>();
+        /** Maps nodes back to their ids. */
+        private final Map<T, Integer> ids = new IdentityHashMap<>();
+        /**
+         * The best neighbors found so far for each node; lock the list to use it.
+         * These hold the nodes rather than their ids, since the queue tells apart ties by identity.
+         */
+        private final List<AssociatedPriorityQueue<T>> lists = new ArrayList<>();
+
+        /** The number of exact distances calculated. */
+        private final AtomicLong measured = new AtomicLong();
+        /** The nodes pin() pinned, which weren't pinned already. */
+        private final List<T> pinned = new ArrayList<>();
+
+        Builder(VantagePointTree<T> tree, int k) {
+            this.k = k;
+
+            // pre-order, without recursion (these trees can get deep)
+            ArrayDeque<VantagePointTree<T>> stack = new ArrayDeque<>();
+            stack.push(tree);
+            while (!stack.isEmpty()) {
+                VantagePointTree<T> current = stack.pop();
+                ids.put(current.root, subtrees.size());
+                subtrees.add(current);
+                lists.add(new AssociatedPriorityQueue<>(k));
+
+                if (current.getRight() != null) stack.push((VantagePointTree<T>) current.getRight());
+                if (current.getLeft()  != null) stack.push((VantagePointTree<T>) current.getLeft());
+            }
+        }
+
+        /**
+         * Keep every sequence in memory, so the searches can run on many threads at once.
+         */
+        void pin() {
+            for (VantagePointTree<T> subtree : subtrees) {
+                // 0 if it was pinned already (e.g. near the root, by SearchIndex.pin()), so it stays that way afterwards
+                if (subtree.root.pin() > 0) pinned.add(subtree.root);
+            }
+        }
+
+        /**
+         * Undo pin().
+         */
+        void unpin() {
+            pinned.forEach(VantagePointTree.Node::unpin);
+            pinned.clear();
+        }
+
+        /**
+         * Put a distance in both nodes' lists.
+         */
+        private void offer(int a, int b, int distance) {
+            AssociatedPriorityQueue<T> listA = lists.get(a);
+            synchronized (listA) {
+                listA.prioritizeItem(distance, subtrees.get(b).root);
+            }
+
+            AssociatedPriorityQueue<T> listB = lists.get(b);
+            synchronized (listB) {
+                listB.prioritizeItem(distance, subtrees.get(a).root);
+            }
+        }
+
+        /**
+         * @return a copy of the ids in a node's list so far
+         */
+        private List<Integer> snapshot(int id) {
+            List<Integer> copy = new ArrayList<>(k);
+            AssociatedPriorityQueue<T> list = lists.get(id);
+            synchronized (list) {
+                for (AssociatedPriorityQueue.Item<T> item : list) {
+                    copy.add(ids.get(item.data));
+                }
+            }
+            return copy;
+        }
+
+        /**
+         * Find the exact neighbors of one node.
+         */
+        private void solve(int id) {
+            String sequence = subtrees.get(id).root.getRawData();
+
+            // measure the neighbors of its neighbors so far
+            List<Integer> known = snapshot(id);
+            Set<Integer> seen = new HashSet<>(known);
+            seen.add(id);
+            // only k of them; they're just for tau, and the search will find anything they miss
+            int budget = k;
+
+            for (int neighbor : known) {
+                for (int candidate : snapshot(neighbor)) {
+                    if (budget > 0 && seen.add(candidate)) {
+                        budget--;
+                        SEED_MEASURED.hit();
+                        measured.incrementAndGet();
+                        offer(id, candidate, EditDistance.measureFast(sequence, subtrees.get(candidate).root.getRawData()));
+                    }
+                }
+            }
+
+            // if there are k of them, nothing farther than the k-th can be a neighbor
+            int tau = VantagePointTree.NO_LIMIT;
+            AssociatedPriorityQueue<T> list = lists.get(id);
+            synchronized (list) {
+                if (list.atCapacity()) tau = list.getWorstPriority();
+            }
+            if (tau != VantagePointTree.NO_LIMIT) SEEDED.hit();
+
+            // everything the search measures could be a neighbor of the other node, too
+            SearchOptions<T> options = new SearchOptions<T>()
+                .withMaxDistance(tau)
+                .withMeasuredListener((node, distance) -> {
+                    int other = ids.get(node);
+                    if (other != id) offer(id, other, distance);
+                });
+
+            // k + 1, since it'll find itself too
+            SearchResult<T> result = subtrees.get(0).search(sequence, k + 1, options);
+            measured.addAndGet(result.distanceCalls);
+
+            // (the results were probably all measured, but some distances come straight from the bounds)
+            for (AssociatedPriorityQueue.Item<T> item : result.results) {
+                int other = ids.get(item.data);
+                if (other != id) offer(id, other, item.priority);
+            }
+        }
+
+        /**
+         * @param duplicates Gets every copy of a tree node's sequence, including the node itself
+         * @return the finished graph
+         */
+        KnnGraph finish(Function<T, List<T>> duplicates) {
+            // number the copies of each tree node one after another, so the copies of id are first[id] to first[id + 1] - 1
+            List<T> copies = new ArrayList<>(subtrees.size());
+            int[] first = new int[subtrees.size() + 1];
+            for (int id = 0; id < subtrees.size(); id++) {
+                first[id] = copies.size();
+                copies.addAll(duplicates.apply(subtrees.get(id).root));
+            }
+            first[subtrees.size()] = copies.size();
+
+            int n = copies.size();
+            String[] names = new String[n];
+            int[][] neighbors = new int[n][k];
+            int[][] distances = new int[n][k];
+
+            for (int id = 0; id < subtrees.size(); id++) {
+                for (int copy = first[id]; copy < first[id + 1]; copy++) {
+                    names[copy] = copies.get(copy).toString();
+                    int[] row = neighbors[copy];
+                    int[] rowDistances = distances[copy];
+
+                    // its other copies are as close as it gets
+                    int j = 0;
+                    for (int other = first[id]; other < first[id + 1] && j < k; other++) {
+                        if (other != copy) {
+                            row[j] = other;
+                            rowDistances[j] = 0;
+                            j++;
+                        }
+                    }
+
+                    for (AssociatedPriorityQueue.Item<T> item : lists.get(id)) {
+                        int neighbor = ids.get(item.data);
+                        for (int other = first[neighbor]; other < first[neighbor + 1] && j < k; other++) {
+                            row[j] = other;
+                            rowDistances[j] = item.priority;
+                            j++;
+                        }
+                    }
+
+                    for (; j < k; j++) {
+                        row[j] = -1;
+                        rowDistances[j] = -1;
+                    }
+                }
+            }
+
+            return new KnnGraph(names, neighbors, distances);
+        }
+    }
+
+    /**
+     * Build the graph of a tree. Every sequence is pinned in memory while building (see Node.pin()),
+     * so the searches can run on many threads at once; they're unpinned afterwards.
+     * @param tree The tree
+     * @param k The number of neighbors for each node
+     * @param pool The pool to run the searches on
+     * @param measured If not null, gets the number of exact distances calculated
+     * @return the graph
+     */
+    public static <T extends VantagePointTree.Node> KnnGraph build(VantagePointTree<T> tree, int k, ForkJoinPool pool, AtomicLong measured) {
+        return build(tree, k, pool, measured, List::of);
+    }
+
+    /**
+     * Build the graph of a tree with one node per distinct sequence (see SearchIndex.getTree()).
+     * @param tree The tree
+     * @param k The number of neighbors for each node
+     * @param pool The pool to run the searches on
+     * @param measured If not null, gets the number of exact distances calculated
+     * @param duplicates Gets every copy of a tree node's sequence, including the node itself
+     * @return the graph, with every copy
+     */
+    public static <T extends VantagePointTree.Node> KnnGraph build(
+        VantagePointTree<T> tree, int k, ForkJoinPool pool, AtomicLong measured, Function<T, List<T>> duplicates
+    ) {
+        if (tree == null) {
+            return new KnnGraph(new String[0], new int[0][], new int[0][]);
+        }
+
+        Builder<T> builder = new Builder<>(tree, k);
+        try {
+            builder.pin();
+            pool.submit(() -> IntStream.range(0, builder.subtrees.size()).parallel().forEach(builder::solve)).join();
+        } finally {
+            builder.unpin();
+        }
+
+        if (measured != null) measured.set(builder.measured.get());
+        return builder.finish(duplicates);
+    }
+
+    /**
+     * Save the graph. The format (all big-endian):
+     * - the magic number 0x4B4E4E47 ("KNNG"), the version, n and k, as ints
+     * - the name of each node, as modified UTF-8 (DataOutput.writeUTF)
+     * - for each node, its k neighbors as (id, distance) pairs of ints, nearest first, padded with (-1, -1)
+     * @param file Where to save it
+     * @throws IOException if it couldn't be written
+     */
+    public void write(File file) throws IOException {
+        int k = names.length == 0 ? 0 : neighbors[0].length;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            out.writeInt(k);
+
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+
+            for (int id = 0; id < names.length; id++) {
+                for (int j = 0; j < k; j++) {
+                    out.writeInt(neighbors[id][j]);
+                    out.writeInt(distances[id][j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a graph saved with write().
+     * @param file The file
+     * @return the graph
+     * @throws IOException if it couldn't be read, or isn't a graph file
+     */
+    public static KnnGraph read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " isn't a k-NN graph file (or is from a different version)");
+            }
+
+            int n = in.readInt();
+            int k = in.readInt();
+
+            String[] names = new String[n];
+            for (int id = 0; id < n; id++) {
+                names[id] = in.readUTF();
+            }
+
+            int[][] neighbors = new int[n][k];
+            int[][] distances = new int[n][k];
+            for (int id = 0; id < n; id++) {
+                for (int j = 0; j < k; j++) {
+                    neighbors[id][j] = in.readInt();
+                    distances[id][j] = in.readInt();
+                }
+            }
+
+            return new KnnGraph(names, neighbors, distances);
+        }
+    }
+
+    /**
+     * Build the graph from the command line.
+     * Usage: KnnGraph <directory> <k> <output.knng> [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: KnnGraph <directory> <k> <output.knng> [threads]");
+            return;
+        }
+
+        int k = Integer.parseInt(args[1]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        IngestionPipeline pipeline = new IngestionPipeline(List.of(new File(args[0])));
+        long start = System.nanoTime();
+        VantagePointTree<FASTAFile> tree;
+        try (pipeline) {
+            tree = VantagePointTree.buildFromIterator(pipeline);
+        }
+        System.out.printf("Built the tree in %d ms.%n", (System.nanoTime() - start) / 1_000_000);
+
+        for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+            System.out.printf("Encountered error while loading %s (skipped)%n", failure);
+        }
+
+        start = System.nanoTime();
+        AtomicLong measured = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        KnnGraph graph;
+        try {
+            graph = build(tree, k, pool, measured);
+        } finally {
+            pool.shutdown();
+        }
+        graph.write(new File(args[2]));
+
+        System.out.printf(
+            "Found the %d nearest neighbors of %d sequences in %d ms (%d distances calculated).%n",
+            k, graph.size(), (System.nanoTime() - start) / 1_000_000, measured.get()
+        );
+    }
+}
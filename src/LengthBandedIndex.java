@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits the corpus into bands by sequence length, each with its own sub-index.
+ *
+ * The length difference between two sequences is a free lower bound on their edit distance,
+ * so a query visits the bands closest in length first, and stops as soon as the length gap alone
+ * is worse than the k-th best distance so far. For very short or very long queries,
+ * this skips most of the corpus without doing any DP at all.
+ */
+public class LengthBandedIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /**
+     * A sub-index holding every node with a length in [minLength, maxLength].
+     */
+    private static class Band<T extends VantagePointTree.Node> {
+        final int minLength;
+        final int maxLength;
+        final SearchIndex<T> index;
+
+        Band(int minLength, int maxLength, SearchIndex<T> index) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.index = index;
+        }
+
+        /**
+         * @param length the query length
+         * @return the smallest possible length difference between the query and anything in this band
+         */
+        int getGap(int length) {
+            return Math.max(0, Math.max(minLength - length, length - maxLength));
+        }
+    }
+
+    /** The maximum number of bands. */
+    private final int numBands;
+    /** Makes the (empty) sub-index for each band. */
+    private final Supplier<SearchIndex<T>> factory;
+    /** The bands, sorted by length. */
+    private final List<Band<T>> bands = new ArrayList<>();
+
+    /**
+     * Create a new, empty index.
+     * @param numBands The maximum number of length bands
+     * @param factory Makes an empty sub-index for each band
+     */
+    public LengthBandedIndex(int numBands, Supplier<SearchIndex<T>> factory) {
+        this.numBands = numBands;
+        this.factory = factory;
+    }
+
+    @Override
+    public void build(Iterator<T> iterator) {
+        ArrayList<T> sorted = new ArrayList<>();
+        while (iterator.hasNext()) {
+            sorted.add(iterator.next());
+        }
+        sorted.sort(Comparator.comparingInt(T::getLength));
+
+        int n = sorted.size();
+        int start = 0;
+        for (int band = 0; band < numBands && start < n; band++) {
+            // roughly equal counts per band
+            int end = band == numBands - 1 ? n : Math.max(start + 1, (int) ((long) n * (band + 1) / numBands));
+
+            // keep equal lengths together so the bands don't overlap
+            while (end < n && sorted.get(end).getLength() == sorted.get(end - 1).getLength()) {
+                end++;
+            }
+
+            List<T> members = sorted.subList(start, end);
+            System.out.printf("Building length band %d (lengths %d-%d, %d nodes)...%n",
+                band, members.get(0).getLength(), members.get(members.size() - 1).getLength(), members.size());
+
+            SearchIndex<T> index = factory.get();
+            index.build(members.iterator());
+            bands.add(new Band<>(members.get(0).getLength(), members.get(members.size() - 1).getLength(), index));
+
+            start = end;
+        }
+    }
+
+    /**
+     * @param length the query length
+     * @return the bands, closest in length first
+     */
+    private List<Band<T>> getBandsByGap(int length) {
+        List<Band<T>> ordered = new ArrayList<>(bands);
+        ordered.sort(Comparator.comparingInt(band -> band.getGap(length)));
+        return ordered;
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        return this.knn(query, k, VantagePointTree.NO_LIMIT);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        return this.knn(query, k, new SearchOptions<T>().withMaxDistance(maxDistance)).results;
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        AssociatedPriorityQueue<T> results = new AssociatedPriorityQueue<>(k);
+        boolean exact = true;
+        int lowerBound = VantagePointTree.NO_LIMIT;
+        long distanceCalls = 0;
+
+        for (Band<T> band : getBandsByGap(query.length())) {
+            // nothing farther than the k-th best so far can make the cut in the later bands
+            int limit = results.atCapacity() ? Math.min(options.maxDistance, results.getWorstPriority()) : options.maxDistance;
+
+            if (band.getGap(query.length()) > limit) {
+                // this band and every band after it are too far away by length alone
+                DebugHelper.getInstance().hit("LengthBandedIndex.knn/stop");
+                break;
+            }
+
+            if (options.isExhausted(distanceCalls)) {
+                // out of time (or distance calls), so this band is skipped; its length gap still bounds it
+                exact = false;
+                lowerBound = Math.min(lowerBound, band.getGap(query.length()));
+                continue;
+            }
+
+            // the band gets whatever's left of the budget
+            SearchOptions<T> bandOptions = options.copy();
+            bandOptions.maxDistance = limit;
+            if (options.maxDistanceCalls > 0) bandOptions.maxDistanceCalls = options.maxDistanceCalls - distanceCalls;
+            if (options.listener != null) {
+                bandOptions.listener = items -> {
+                    // show the results of the bands so far, merged with this one's
+                    AssociatedPriorityQueue<T> merged = new AssociatedPriorityQueue<>(k);
+                    results.forEach(merged::prioritize);
+                    items.forEach(merged::prioritize);
+                    options.emit(new ArrayList<>(merged));
+                };
+            }
+
+            DebugHelper.getInstance().hit("LengthBandedIndex.knn/band");
+            SearchResult<T> result = band.index.knn(query, k, bandOptions);
+            result.results.forEach(results::prioritize);
+            distanceCalls += result.distanceCalls;
+
+            if (!result.exact) {
+                exact = false;
+                lowerBound = Math.min(lowerBound, result.lowerBound);
+            }
+        }
+
+        // a skipped band can't matter if the results we have are all closer than anything it could hold
+        if (!exact && results.atCapacity() && lowerBound > results.getWorstPriority()) {
+            exact = true;
+        }
+
+        return new SearchResult<>(new ArrayList<>(results), exact, lowerBound, distanceCalls);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        for (Band<T> band : bands) {
+            if (band.getGap(query.length()) <= radius) {
+                band.index.range(query, radius, sink);
+            }
+        }
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        long pinned = 0;
+
+        // share the memory evenly, and hand whatever a small band doesn't use to the rest
+        for (int i = 0; i < bands.size(); i++) {
+            long share = (maxBytes - pinned) / (bands.size() - i);
+            pinned += bands.get(i).index.pin(levels, share);
+        }
+
+        return pinned;
+    }
+
+    @Override
+    public long getVersion() {
+        return bands.stream().mapToLong(band -> band.index.getVersion()).sum();
+    }
+
+    @Override
+    public void close() {
+        for (Band<T> band : bands) {
+            band.index.close();
+        }
+    }
+
+    @Override
+    public int size() {
+        return bands.stream().mapToInt(band -> band.index.size()).sum();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("nodes", (long) size());
+        stats.put("bands", (long) bands.size());
+
+        // report the worst case of each sub-index statistic
+        for (Band<T> band : bands) {
+            band.index.stats().forEach((key, value) -> {
+                if (!key.equals("nodes")) {
+                    stats.merge(key, value, Math::max);
+                }
+            });
+        }
+
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        List<T> nodes = new ArrayList<>();
+        for (Band<T> band : bands) {
+            nodes.addAll(band.index.nodes());
+        }
+        return nodes;
+    }
+
+    @Override
+    public void verify() {
+        for (Band<T> band : bands) {
+            for (T node : band.index.nodes()) {
+                assert band.minLength <= node.getLength() && node.getLength() <= band.maxLength;
+            }
+            band.index.verify();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * The dumbest possible SearchIndex: measure the query against every single sequence.
+ *
+ * This is parallelized across all cores and always uses the fast edit distance ruler,
+ * so it's a decent option for small corpora, and it's the ground truth for exhaustive searches.
+ *
+ * All sequences are loaded into memory at build time, since we touch every one of them on every query anyway.
+ */
+public class LinearScanIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /** The indexed nodes. */
+    private final ArrayList<T> nodes = new ArrayList<>();
+    /** sequences.get(i) is the raw data of nodes.get(i). */
+    private final ArrayList<String> sequences = new ArrayList<>();
+
+    @Override
+    public void build(Iterator<T> iterator) {
+        while (iterator.hasNext()) {
+            T node = iterator.next();
+            nodes.add(node);
+            sequences.add(node.getRawData());
+        }
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        return this.knn(query, k, VantagePointTree.NO_LIMIT);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        // Each worker keeps its own bounded top-k, and they're merged at the end,
+        // so there's no contention on a shared queue.
+        AssociatedPriorityQueue<T> best = IntStream.range(0, nodes.size())
+            .parallel()
+            .collect(
+                () -> new AssociatedPriorityQueue<T>(k),
+                (queue, i) -> {
+                    String sequence = sequences.get(i);
+                    int gap = Math.abs(sequence.length() - query.length());
+
+                    // the length difference is a free lower bound, so skip the DP if it can't possibly make the cut
+                    if (gap > maxDistance || (queue.atCapacity() && gap >= queue.getWorstPriority())) {
+                        return;
+                    }
+
+                    int dist = EditDistance.measureFast(query, sequence);
+                    if (dist <= maxDistance) {
+                        queue.prioritizeItem(dist, nodes.get(i));
+                    }
+                },
+                (a, b) -> b.forEach(a::prioritize)
+            );
+
+        return new ArrayList<>(best);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        IntStream.range(0, nodes.size())
+            .parallel()
+            .filter(i -> Math.abs(sequences.get(i).length() - query.length()) <= radius)
+            .mapToObj(i -> new AssociatedPriorityQueue.Item<>(EditDistance.measureFast(query, sequences.get(i)), nodes.get(i)))
+            .filter(item -> item.priority <= radius)
+            .forEachOrdered(sink); // the sink doesn't have to be thread-safe
+    }
+
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("nodes", (long) nodes.size());
+        stats.put("residues", sequences.stream().mapToLong(String::length).sum());
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for the hot pieces of the search: rulers, queues and caches.
+ *
+ * This is a tiny JMH-style harness (warmup iterations, timed iterations, a blackhole)
+ * so it can run straight out of release.jar without any extra dependencies:
+ *
+ *   java -cp release.jar Microbenchmark [--csv out.csv] [--json out.json] [--time ms] [--iterations n] [filter]
+ *
+ * Only benchmarks whose name contains the filter are run. Results always go to stdout as CSV,
+ * and optionally to files, so they can be diffed between builds to catch regressions.
+ */
+public class Microbenchmark {
+    /**
+     * A benchmark body. Return something derived from the work so the JIT can't throw it away.
+     */
+    private interface Body {
+        long run();
+    }
+
+    /**
+     * The results of one benchmark.
+     */
+    private static class Result {
+        final String name;
+        final String params;
+        final double nsPerOp;
+        final double stddev;
+        final long ops;
+
+        Result(String name, String params, double nsPerOp, double stddev, long ops) {
+            this.name = name;
+            this.params = params;
+            this.nsPerOp = nsPerOp;
+            this.stddev = stddev;
+            this.ops = ops;
+        }
+
+        String toCSV() {
+            return String.format(Locale.ROOT, "%s,%s,%.1f,%.1f,%d", name, params, nsPerOp, stddev, ops);
+        }
+
+        String toJSON() {
+            return String.format(
+                Locale.ROOT,
+                "{\"name\":\"%s\",\"params\":\"%s\",\"nsPerOp\":%.1f,\"stddev\":%.1f,\"ops\":%d}",
+                name, params, nsPerOp, stddev, ops
+            );
+        }
+    }
+
+    /** Consumes benchmark results so they aren't optimized away. */
+    private static volatile long blackhole;
+
+    /** Warmup iterations per benchmark. */
+    private static int warmupIterations = 3;
+    /** Timed iterations per benchmark. */
+    private static int iterations = 5;
+    /** The minimum length of each iteration, in nanoseconds. */
+    private static long iterationTime = 200_000_000L;
+    /** Only run benchmarks containing this. */
+    private static String filter = "";
+
+    private static final List<Result> results = new ArrayList<>();
+
+    /**
+     * Run a benchmark, print its result and remember it.
+     * @param name The benchmark name
+     * @param params The parameters, e.g. "length=50"
+     * @param body The code to time; one call is one operation
+     */
+    private static void bench(String name, String params, Body body) {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        double[] samples = new double[iterations];
+        long totalOps = 0;
+
+        for (int i = -warmupIterations; i < iterations; i++) {
+            long ops = 0;
+            long sink = 0;
+            long start = System.nanoTime();
+            long elapsed;
+
+            do {
+                sink += body.run();
+                ops++;
+            } while ((elapsed = System.nanoTime() - start) < iterationTime);
+
+            blackhole = sink;
+
+            if (i >= 0) {
+                samples[i] = (double) elapsed / ops;
+                totalOps += ops;
+            }
+        }
+
+        double mean = 0;
+        for (double sample : samples) mean += sample / samples.length;
+        double variance = 0;
+        for (double sample : samples) variance += (sample - mean) * (sample - mean) / Math.max(1, samples.length - 1);
+
+        Result result = new Result(name, params, mean, Math.sqrt(variance), totalOps);
+        results.add(result);
+        System.out.println(result.toCSV());
+    }
+
+    /**
+     * Make a random protein-like sequence.
+     * @param random The RNG to use
+     * @param length The sequence length
+     * @return the sequence
+     */
+    private static String randomSequence(Random random, int length) {
+        String residues = "ACDEFGHIKLMNPQRSTVWY";
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(residues.charAt(random.nextInt(residues.length())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Mutate a sequence a little, so it's similar but not identical to the original (like a real neighbor).
+     * @param random The RNG to use
+     * @param sequence The original
+     * @return the mutated copy
+     */
+    private static String mutate(Random random, String sequence) {
+        StringBuilder builder = new StringBuilder(sequence);
+        for (int i = 0; i < sequence.length() / 10; i++) {
+            builder.setCharAt(random.nextInt(builder.length()), randomSequence(random, 1).charAt(0));
+        }
+        return builder.toString();
+    }
+
+    private static void benchRulers(Random random) {
+        for (int length : new int[] {50, 200, 1000, 5000, 35000}) {
+            String s = randomSequence(random, length);
+            String t = mutate(random, s);
+
+            bench("EditDistance.IterativeRuler", "length=" + length, () -> new EditDistance.IterativeRuler(s, t).measure());
+
+            // The recursive ruler needs a memo entry per DP cell (an int each), so the longest one is out of reach
+            if (length <= 5000) {
+                bench("EditDistance.RecursiveRuler", "length=" + length, () -> new EditDistance.RecursiveRuler(s, t).measure());
+            }
+        }
+    }
+
+    private static void benchQueues(Random random) {
+        for (int size : new int[] {100, 1000, 10000}) {
+            int[] priorities = random.ints(size, 0, 5000).toArray();
+            Object[] data = new Object[size];
+            for (int i = 0; i < size; i++) data[i] = new Object();
+
+            // a search frontier: unbounded, filled up and drained
+            bench("AssociatedPriorityQueue.prioritize/frontier", "size=" + size, () -> {
+                AssociatedPriorityQueue<Object> queue = new AssociatedPriorityQueue<>();
+                for (int i = 0; i < size; i++) queue.prioritizeItem(priorities[i], data[i]);
+                return queue.size();
+            });
+
+            // a result list: bounded, mostly rejecting
+            bench("AssociatedPriorityQueue.prioritize/results", "size=" + size + ",k=" + ConfigMenu.NUM_NEIGHBORS, () -> {
+                AssociatedPriorityQueue<Object> queue = new AssociatedPriorityQueue<>(ConfigMenu.NUM_NEIGHBORS);
+                for (int i = 0; i < size; i++) queue.prioritizeItem(priorities[i], data[i]);
+                return queue.getWorstPriority();
+            });
+        }
+    }
+
+    private static void benchCaches(Random random) throws IOException {
+        LossyHashMap<Integer, String> map = new LossyHashMap<>(1024);
+        for (int i = 0; i < 1024; i++) map.put(i, "x");
+        bench("LossyHashMap.get/hit", "size=1024", () -> map.get(1 + random.nextInt(1000)).length());
+        bench("LossyHashMap.put/evict", "size=1024", () -> {
+            map.put(random.nextInt(), "x");
+            return map.size();
+        });
+
+        File file = File.createTempFile("bench", ".fasta");
+        file.deleteOnExit();
+        String sequence = randomSequence(random, 400);
+        Files.writeString(file.toPath(), ">sp|BENCH|bench protein\n" + sequence.replaceAll("(.{60})", "$1\n") + "\n");
+
+        FASTAFile fasta = new FASTAFile(file.getAbsolutePath());
+        fasta.getFASTAData();
+        bench("FASTAFile.getFASTAData/hit", "length=400", () -> fasta.getRawData().length());
+        bench("FASTAFile.getFASTAData/miss", "length=400", () -> {
+            FASTAFile.clearCache();
+            return fasta.getRawData().length();
+        });
+    }
+
+    /**
+     * An in-memory node, so building trees doesn't touch the disk.
+     */
+    private static class MemoryNode extends VantagePointTree.Node {
+        private final String name;
+        private final String data;
+
+        MemoryNode(String name, String data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        @Override
+        String getRawData() {
+            return data;
+        }
+
+        @Override
+        int getLength() {
+            return data.length();
+        }
+    }
+
+    private static void benchDistanceCache(Random random) {
+        for (int size : new int[] {100, 1000}) {
+            List<MemoryNode> nodes = new ArrayList<>();
+            String ancestor = randomSequence(random, 200);
+            for (int i = 0; i < size; i++) {
+                nodes.add(new MemoryNode("n" + i, i % 10 == 0 ? (ancestor = randomSequence(random, 200)) : mutate(random, ancestor)));
+            }
+
+            VantagePointTree<MemoryNode> tree = VantagePointTree.buildFromIterator(nodes.iterator());
+            List<VantagePointTree<MemoryNode>> subtrees = new ArrayList<>();
+            collect(tree, subtrees);
+            String query = mutate(random, nodes.get(0).getRawData());
+
+            // a fresh cache each time, so this includes filling in the bounds via the parents
+            bench("DistanceCache.getLowerBound/cold", "nodes=" + size, () -> {
+                DistanceCache<MemoryNode> cache = new DistanceCache<>(query);
+                long sum = 0;
+                for (VantagePointTree<MemoryNode> subtree : subtrees) sum += cache.getLowerBound(subtree);
+                return sum;
+            });
+
+            DistanceCache<MemoryNode> warm = new DistanceCache<>(query);
+            bench("DistanceCache.getLowerBound/warm", "nodes=" + size, () -> {
+                long sum = 0;
+                for (VantagePointTree<MemoryNode> subtree : subtrees) sum += warm.getLowerBound(subtree);
+                return sum;
+            });
+            bench("DistanceCache.getRecursiveLowerBound", "nodes=" + size, () -> warm.getRecursiveLowerBound(tree));
+        }
+    }
+
+    private static void collect(VantagePointTree<MemoryNode> tree, List<VantagePointTree<MemoryNode>> out) {
+        if (tree == null) return;
+        out.add(tree);
+        collect((VantagePointTree<MemoryNode>) tree.getLeft(), out);
+        collect((VantagePointTree<MemoryNode>) tree.getRight(), out);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String csvPath = null;
+        String jsonPath = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--csv": csvPath = args[++i]; break;
+                case "--json": jsonPath = args[++i]; break;
+                case "--time": iterationTime = Long.parseLong(args[++i]) * 1_000_000L; break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmupIterations = Integer.parseInt(args[++i]); break;
+                default: filter = args[i];
+            }
+        }
+
+        // fixed seed, so every run measures the same inputs
+        Random random = new Random(42);
+
+        System.out.println("name,params,ns_per_op,stddev,ops");
+        benchRulers(random);
+        benchQueues(random);
+        benchCaches(random);
+        benchDistanceCache(random);
+
+        if (csvPath != null) {
+            try (PrintStream out = new PrintStream(csvPath)) {
+                out.println("name,params,ns_per_op,stddev,ops");
+                for (Result result : results) out.println(result.toCSV());
+            }
+        }
+
+        if (jsonPath != null) {
+            try (PrintStream out = new PrintStream(jsonPath)) {
+                out.println("[");
+                for (int i = 0; i < results.size(); i++) {
+                    out.printf("  %s%s%n", results.get(i).toJSON(), i + 1 < results.size() ? "," : "");
+                }
+                out.println("]");
+            }
+        }
+    }
+}
@@ -1,12 +1,5 @@
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -18,61 +11,70 @@ import java.util.List;
  * (which seems to be related to seeking?) and I'm not entirely sure why.
  */
 public class MultiFASTAFile extends FASTAFile {
-    /** To run in a reasonable amount of time. */
-    private static HashMap<String, FileInputStream> CACHE = new HashMap<>();
-
-    /** Offset from the start of the large container file, in characters, to the section we want */
+    /** Offset from the start of the large container file, in bytes, to the section we want */
     private long offset;
+    /** Where the sequence starts, if we know the layout from a FastaIndex. */
+    private long sequenceOffset = -1;
+    /** Residues per line, or 0 if we don't know the layout (so the record has to be scanned). */
+    private int lineBases = 0;
+    /** Bytes per line, including the line break. */
+    private int lineWidth = 0;
 
     public MultiFASTAFile(String location, long offset) {
         super(location);
         this.offset = offset;
     }
+
+    /**
+     * Make a record from its index entry, without reading anything.
+     * @param location The path to the multi-FASTA file
+     * @param entry The record's entry in the file's FastaIndex
+     */
+    public MultiFASTAFile(String location, FastaIndex.Entry entry) {
+        this(location, entry.offset);
+        this.sequenceOffset = entry.sequenceOffset;
+        this.lineBases = entry.lineBases;
+        this.lineWidth = entry.lineWidth;
+        fill(entry.offset + 1, entry.length, entry.sequenceHash);
+    }
     
     /**
-     * Open the file and put it in the list.
-     * This currently leaks file descriptors,
-     * but they should automatically close on program end anyway.
-     * @return the FileInputStream for this MultiFASTAFile.
+     * Borrow the container file from the pool. Close it when you're done.
+     * @return the container file
+     * @throws IOException if it couldn't be opened, or its records can't be read one at a time (plain gzip)
      */
-    protected FileInputStream getFile() {
-        return CACHE.computeIfAbsent(location, l -> {
-            try {
-                return new FileInputStream(l);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+    protected FASTAParser.Source getSource() throws IOException {
+        FASTAParser.Source source = FileChannelPool.getInstance().acquire(location);
+
+        if (!source.isSeekable()) {
+            source.close();
+            throw new IOException(location + " isn't block-compressed, so its records can't be read one at a time (use BlockGzip)");
+        }
 
-            return null;
-        });
+        return source;
     }
 
     /**
-     * We override this because we only want specific lines in the file.
+     * We override this because we only want one record in the file.
+     * This uses positional reads, so other threads can read the same file at the same time.
      */
     @Override
-    protected List<String> getLines() throws IOException {
-        LinkedList<String> lines = new LinkedList<>();
+    protected FASTAParser.Record read(FASTAParser parser) throws IOException {
+        try (FASTAParser.Source source = this.getSource()) {
+            if (lineBases > 0) {
+                // we know exactly where every residue is, so skip the scanning
+                return parser.readSequence(source, sequenceOffset, getLength(), lineBases, lineWidth);
+            }
 
-        FileInputStream fileInputStream = this.getFile();
-        fileInputStream.getChannel().position(offset);
+            return parser.parseFirst(source, offset);
+        }
+    }
 
-        try (InputStreamReader reader = new InputStreamReader(fileInputStream)) {
-            try (BufferedReader buffered = new BufferedReader(reader)) {
-                String line = buffered.readLine();
-                if (line == null) {
-                    return null;
-                }
-        
-                do {
-                    lines.add(line);
-                    line = buffered.readLine();
-                } while (line != null && !line.startsWith(">"));
-        
-                return lines;
-            }
+    @Override
+    protected String readDescription(FASTAParser parser, long descriptionOffset) throws IOException {
+        try (FASTAParser.Source source = this.getSource()) {
+            return parser.readDescription(source, descriptionOffset);
         }
-        
     }
 
     /**
@@ -85,26 +87,16 @@ public class MultiFASTAFile extends FASTAFile {
 
     /**
      * Read all the FASTA files embedded inside a "multi-FASTA" file.
+     * This uses the file's .fai sidecar index if it's up to date, otherwise it makes one.
      * @param location The path to the multi-FASTA file
      * @return All the "sub-FASTAs" in this multi-FASTA file, as a List
-     * @throws IOException if the file could not be read
+     * @throws IOException if the file could not be read, or is gzipped without being block-compressed
      */
     public static List<MultiFASTAFile> readFiles(String location) throws IOException {
-        ArrayList<MultiFASTAFile> list = new ArrayList<>();
-
-        try (FileReader fileReader = new FileReader(location)) {
-            try (BufferedReader reader = new BufferedReader(fileReader)) {
-                int c;
-                for (int i = 0; (c = reader.read()) != -1; i++) {
-                    // split on '>'
-                    if (c == '>') {
-                        // i is actually one less than the index of the '>'
-                        list.add(new MultiFASTAFile(location, i));
-                    }
-                }
-            }
+        if (!FASTAParser.isSeekable(new File(location))) {
+            throw new IOException(location + " isn't block-compressed, so its records can't be read one at a time (use BlockGzip)");
         }
 
-        return list;
+        return FastaIndex.load(new File(location)).getNodes();
     }
 }
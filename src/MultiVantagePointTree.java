@@ -0,0 +1,358 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A multi-way (m-ary) vantage-point tree.
+ *
+ * Each vantage point splits the rest of its subset into (up to) m "shells" by distance quantiles,
+ * and stores the m-1 cut points between them. Compared to the binary VantagePointTree, this cuts the depth
+ * by a factor of about log2(m), and one distance measurement can rule out several shells at once.
+ *
+ * Unlike VantagePointTree, this is built top-down from the full list of nodes, so it's always balanced.
+ */
+public class MultiVantagePointTree<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /**
+     * A vantage point and its shells.
+     */
+    private static class Branch<T> {
+        /** The vantage point. */
+        final T vantage;
+        /**
+         * The cut points, in strictly increasing order.
+         * children[i] holds the nodes with cuts[i - 1] < distance <= cuts[i],
+         * where cuts[-1] is -1 and cuts[children.length - 1] is infinity.
+         */
+        final int[] cuts;
+        /** The shells. Empty for leaves. */
+        final List<Branch<T>> children;
+
+        Branch(T vantage, int[] cuts, List<Branch<T>> children) {
+            this.vantage = vantage;
+            this.cuts = cuts;
+            this.children = children;
+        }
+
+        /**
+         * @param i the shell index
+         * @return the smallest distance to the vantage point that shell i can contain
+         */
+        int getShellLow(int i) {
+            return i == 0 ? 0 : cuts[i - 1] + 1;
+        }
+
+        /**
+         * @param i the shell index
+         * @return the largest distance to the vantage point that shell i can contain
+         */
+        int getShellHigh(int i) {
+            return i == cuts.length ? Integer.MAX_VALUE : cuts[i];
+        }
+
+        int getDepth() {
+            int max = 0;
+            for (Branch<T> child : children) {
+                max = Math.max(max, child.getDepth());
+            }
+            return 1 + max;
+        }
+    }
+
+    // Handles for the debug stats
+    private static final DebugHelper.Counter SEARCH        = DebugHelper.getInstance().counter("MultiVantagePointTree.search");
+    private static final DebugHelper.Counter SEARCH_BODY   = DebugHelper.getInstance().counter("MultiVantagePointTree.search/body");
+    private static final DebugHelper.Counter SEARCH_PRUNED = DebugHelper.getInstance().counter("MultiVantagePointTree.search/pruned");
+
+    /** The maximum number of shells per vantage point. */
+    private final int fanout;
+    /** The root, or null if the tree is empty. */
+    private Branch<T> root = null;
+    /** All the nodes, for nodes(). */
+    private final ArrayList<T> nodes = new ArrayList<>();
+
+    /**
+     * Create a new, empty tree.
+     * @param fanout The maximum number of shells per vantage point (at least 2)
+     */
+    public MultiVantagePointTree(int fanout) {
+        if (fanout < 2) {
+            throw new IllegalArgumentException("fanout must be at least 2");
+        }
+
+        this.fanout = fanout;
+    }
+
+    @Override
+    public void build(Iterator<T> iterator) {
+        while (iterator.hasNext()) {
+            nodes.add(iterator.next());
+        }
+
+        System.out.printf("Partitioning %d nodes into %d-way shells...%n", nodes.size(), fanout);
+        root = nodes.isEmpty() ? null : this.buildBranch(new ArrayList<>(nodes));
+    }
+
+    /**
+     * Recursively build a branch out of a subset of the nodes.
+     * @param subset The nodes to put in this branch (non-empty). The first one becomes the vantage point.
+     * @return the new branch
+     */
+    private Branch<T> buildBranch(List<T> subset) {
+        T vantage = subset.get(0);
+        String vantageData = vantage.getRawData();
+
+        // measure everything else against the vantage point, and sort by that
+        // (a plain sort, since AssociatedPriorityQueue would do an O(n) insertion per node)
+        ArrayList<AssociatedPriorityQueue.Item<T>> items = new ArrayList<>(subset.size() - 1);
+        for (int i = 1; i < subset.size(); i++) {
+            T node = subset.get(i);
+            items.add(new AssociatedPriorityQueue.Item<>(EditDistance.measure(node.getRawData(), vantageData), node));
+        }
+        items.sort(Comparator.comparingInt(item -> item.priority));
+
+        int n = items.size();
+        List<Branch<T>> children = new ArrayList<>();
+        ArrayList<Integer> cuts = new ArrayList<>();
+
+        int start = 0;
+        for (int shell = 0; shell < fanout && start < n; shell++) {
+            // the quantile boundary for this shell
+            int end = shell == fanout - 1 ? n : Math.max(start + 1, (int) ((long) n * (shell + 1) / fanout));
+
+            // nodes at the same distance must go in the same shell, otherwise the cuts lie
+            while (end < n && items.get(end).priority == items.get(end - 1).priority) {
+                end++;
+            }
+
+            List<T> shellNodes = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                shellNodes.add(items.get(i).data);
+            }
+
+            if (end < n) {
+                cuts.add(items.get(end - 1).priority);
+            }
+
+            children.add(this.buildBranch(shellNodes));
+            start = end;
+        }
+
+        return new Branch<>(vantage, cuts.stream().mapToInt(Integer::intValue).toArray(), children);
+    }
+
+    /**
+     * Best-first search shared by knn() and range().
+     * @param query The sequence to search for
+     * @param k The maximum number of results, or <= 0 for no limit
+     * @param options The initial (inclusive) search radius, when to give up, etc.
+     * @param sink Receives every node found within the current radius; may be null
+     * @return The k best results, if k > 0
+     */
+    private SearchResult<T> search(String query, int k, SearchOptions<T> options, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        SEARCH.hit();
+        SearchTrace trace = SearchTrace.current();
+
+        AssociatedPriorityQueue<T> results = new AssociatedPriorityQueue<>(k);
+        int tau = options.maxDistance;
+        long measured = 0;
+
+        if (root == null) {
+            return SearchResult.exact(results, 0);
+        }
+
+        // prioritized by the lower bound on the distance to anything in the branch
+        AssociatedPriorityQueue<Branch<T>> toSearch = new AssociatedPriorityQueue<>();
+        Util.ensure(toSearch.prioritizeItem(0, root));
+
+        while (!toSearch.isEmpty() && toSearch.peek().priority <= tau) {
+            SEARCH_BODY.hit();
+
+            if (options.isExhausted(measured)) {
+                // out of time (or distance calls); everything left is at least as far as the front of the queue
+                int lowerBound = toSearch.peek().priority;
+                return new SearchResult<>(new ArrayList<>(results), false, lowerBound, measured);
+            }
+
+            // another search for the same query (e.g. in another shard) may have done better
+            if (k > 0 && options.sharedTau != null) tau = Math.min(tau, options.sharedTau.get());
+
+            AssociatedPriorityQueue.Item<Branch<T>> currentItem = toSearch.poll();
+            Branch<T> current = currentItem.data;
+            if (trace != null) trace.nodesPopped++;
+
+            // start reading the next few vantage points while we measure this one
+            int issued = 0;
+            for (AssociatedPriorityQueue.Item<Branch<T>> next : toSearch) {
+                if (issued++ >= ConfigMenu.PREFETCH_DEPTH || next.priority > tau) break;
+                next.data.vantage.prefetch();
+            }
+
+            int dist = EditDistance.measure(query, current.vantage.getRawData());
+            measured++;
+
+            if (dist <= tau) {
+                if (sink != null) {
+                    sink.accept(new AssociatedPriorityQueue.Item<>(dist, current.vantage));
+                }
+
+                if (k > 0) {
+                    if (results.prioritizeItem(dist, current.vantage) && options.listener != null) {
+                        options.emit(new ArrayList<>(results));
+                    }
+                    if (results.atCapacity()) {
+                        tau = Math.min(tau, results.getWorstPriority());
+                        if (options.sharedTau != null) tau = options.sharedTau.accumulateAndGet(tau, Math::min);
+                        if (trace != null) trace.tau(tau);
+                    }
+                }
+            }
+
+            for (int i = 0; i < current.children.size(); i++) {
+                // triangle inequality: anything in shell i is at least this far from the query
+                int low = current.getShellLow(i) - dist;
+                int high = current.getShellHigh(i);
+                int bound = Math.max(currentItem.priority, Math.max(low, high == Integer.MAX_VALUE ? 0 : dist - high));
+
+                if (bound <= tau) {
+                    toSearch.prioritizeItem(bound, current.children.get(i));
+                } else {
+                    SEARCH_PRUNED.hit();
+                    if (trace != null) trace.prunedByLowerBound++;
+                }
+            }
+        }
+
+        return SearchResult.exact(new ArrayList<>(results), measured);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        return this.search(query, k, new SearchOptions<>(), null).results;
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        return this.search(query, k, new SearchOptions<T>().withMaxDistance(maxDistance), null).results;
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        return this.search(query, k, options, null);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        this.search(query, 0, new SearchOptions<T>().withMaxDistance(radius), sink);
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        long pinned = 0;
+        List<Branch<T>> level = root == null ? List.of() : List.of(root);
+
+        // breadth-first, so the shallowest levels get pinned first
+        for (int depth = 0; depth < levels && !level.isEmpty(); depth++) {
+            List<Branch<T>> next = new ArrayList<>();
+
+            for (Branch<T> branch : level) {
+                if (pinned >= maxBytes) {
+                    return pinned;
+                }
+
+                pinned += branch.vantage.pin();
+                next.addAll(branch.children);
+            }
+
+            level = next;
+        }
+
+        return pinned;
+    }
+
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("nodes", (long) nodes.size());
+        stats.put("depth", root == null ? 0L : root.getDepth());
+        stats.put("fanout", (long) fanout);
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        return nodes;
+    }
+
+    @Override
+    public void verify() {
+        if (root != null) verify(root);
+    }
+
+    private void verify(Branch<T> branch) {
+        assert branch.cuts.length == Math.max(0, branch.children.size() - 1);
+
+        for (int i = 0; i < branch.children.size(); i++) {
+            Branch<T> child = branch.children.get(i);
+            int dist = EditDistance.measure(child.vantage.getRawData(), branch.vantage.getRawData());
+            assert branch.getShellLow(i) <= dist && dist <= branch.getShellHigh(i);
+            verify(child);
+        }
+    }
+
+    /**
+     * Compares the binary vp-tree against this tree at several fan-outs.
+     * Run the main method with a directory of .fasta files, followed by some query .fasta files.
+     */
+    private static class FanoutBenchmark {
+        private static void run(String name, SearchIndex<FASTAFile> index, List<FASTAFile> corpus, List<String> queries) {
+            DebugHelper.getInstance().reset();
+            Stopwatch watch = Stopwatch.tick();
+            index.build(corpus.iterator());
+            long buildTime = watch.tock();
+            long buildCalls = DebugHelper.getInstance().get("EditDistance.measure");
+
+            DebugHelper.getInstance().reset();
+            watch = Stopwatch.tick();
+            for (String query : queries) {
+                index.knn(query, ConfigMenu.NUM_NEIGHBORS);
+            }
+            long queryTime = watch.tock();
+            long queryCalls = DebugHelper.getInstance().get("EditDistance.measure");
+
+            System.out.printf(
+                "%-12s build %8d us, %8d distances, depth %4d | per query %8d us, %8d distances%n",
+                name, buildTime / 1000, buildCalls, index.stats().getOrDefault("depth", 0L),
+                queryTime / 1000 / queries.size(), queryCalls / queries.size()
+            );
+        }
+
+        public static void main(String[] args) throws Exception {
+            List<FASTAFile> corpus = new ArrayList<>();
+            for (File f : new File(args[0]).listFiles()) {
+                if (f.getName().endsWith(".fasta")) {
+                    corpus.add(new FASTAFile(f.getAbsolutePath()));
+                }
+            }
+
+            List<String> queries = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                queries.add(new FASTAFile(args[i]).getFASTAData());
+            }
+
+            run("binary", new VantagePointTreeIndex<>(), corpus, queries);
+            for (int m : new int[] {2, 4, 8, 16, 32}) {
+                run(String.format("%d-way", m), new MultiVantagePointTree<>(m), corpus, queries);
+            }
+        }
+    }
+}
@@ -1,11 +1,19 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 import java.util.Scanner;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * The whole enchalada.
@@ -13,17 +21,35 @@ import java.util.stream.Stream;
  * i.e., the main application
  */
 public class ProteinSearch {
+    /** How long (re)building the index takes, in nanoseconds. */
+    private static final DebugHelper.Histogram BUILD_TIME = DebugHelper.getInstance().histogram("ProteinSearch.buildIndex/time");
+    /** How long each search takes, in nanoseconds. */
+    private static final DebugHelper.Histogram QUERY_TIME = DebugHelper.getInstance().histogram("ProteinSearch.doSearch/time");
+
     Scanner scanner = new Scanner(System.in);
-    VantagePointTree<FASTAFile> tree;
+    SearchIndex<FASTAFile> index;
+    /** Exact index for exhaustive searches; lazily built from the main index. */
+    SearchIndex<FASTAFile> groundTruth;
     String directory;
+    /** The trace of the last search, if search traces are enabled. */
+    SearchTrace lastTrace;
 
     /**
      * Instantiate a new instance of the CLI app, and build the index.
      * @param directory The directory to index FASTA files from
      */
     public ProteinSearch(String directory) {
+        this(directory, true);
+    }
+
+    /**
+     * Instantiate a new instance of the app, and build the index.
+     * @param directory The directory to index FASTA files from
+     * @param interactive If false, skip the startup menu (e.g. for batch mode)
+     */
+    public ProteinSearch(String directory, boolean interactive) {
         this.directory = directory;
-        this.preStartup();
+        if (interactive) this.preStartup();
         this.buildIndex();
     }
 
@@ -42,70 +68,105 @@ public class ProteinSearch {
      * (re?)build the index.
      */
     public void buildIndex() {
-        DebugHelper.getInstance().lap();
+        DebugHelper.getInstance().snapshotAndReset().print();
 
         System.out.println("Building index...");
+        IndexBuildEvent event = new IndexBuildEvent();
+        event.begin();
         Stopwatch watch = Stopwatch.tick(); // Time is ticking!
 
-        File[] files = new File(directory).listFiles();
-        List<File> fileList = Arrays.asList(files);
-        // We do this to make the tree behavior a bit better
+        // We shuffle the files to make the tree behavior a bit better
         // Sequential filenames are usually related proteins
-        Collections.shuffle(fileList);
-        
-        tree = VantagePointTree.buildFromIterator(
-            fileList.stream()
-            .filter(f -> f.isFile()) // make sure it's not a directory or something weird
-            .<FASTAFile>flatMap(f -> {
-                if (f.getName().endsWith(".fasta")) {
-                    // load normal .fasta files
-                    FASTAFile fasta = new FASTAFile(f.getAbsolutePath());
+        IngestionPipeline pipeline = new IngestionPipeline(Collections.singletonList(new File(directory)));
 
-                    try {
-                        // if this fails, the file is definitely not going to work
-                        fasta.getFASTAData();
-                        // make it in a stream of itself (we're flatmapping here)
-                        return Stream.of(fasta);
-                    } catch (Exception e) {
-                        System.out.printf("Encountered error while loading %s (skipping):%n", f.getAbsolutePath());
-                        e.printStackTrace();
-                    }
+        // stop the old one's threads, if it has any
+        if (index != null) index.close();
 
-                    // Loading the file didn't work.
-                } else if (ConfigMenu.LOAD_MULTIFASTA && f.getName().endsWith(".multifasta")) {
-                    // load .multifasta files
-                    try {
-                        // if this fails, the file is definitely not going to work
-                        // read each segment of the multifile
-                        return MultiFASTAFile.readFiles(f.getAbsolutePath()).stream()
-                            .map(fasta -> {
-                                try {
-                                    // ensure that we can actually load each segment
-                                    fasta.getFASTAData();
-                                    return (FASTAFile) fasta;
-                                } catch (Exception e) {
-                                    System.out.printf("Encountered error while loading %s (skipping):%n", fasta.toString());
-                                }
-
-                                // if not, don't include it
-                                return null;
-                            })
-                            .filter(Objects::nonNull); // remove failed entries
-                    } catch (Exception e) {
-                        // the whole .multifasta failed
-                        System.out.printf("Encountered error while loading %s (skipping):%n", f.getAbsolutePath());
-                        e.printStackTrace();
-                    }
+        index = SearchIndex.fromConfig();
+        // if the build fails partway, this stops the loading threads instead of leaving them waiting for it forever
+        try (pipeline) {
+            index.build(pipeline);
+        }
+        long elapsed = watch.tock();
+        BUILD_TIME.record(elapsed);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.fileCount = pipeline.getFileCount();
+            event.nodes = index.size();
+            event.distanceCalls = DebugHelper.getInstance().get("EditDistance.measure");
+            event.engine = ConfigMenu.INDEX_TYPE.toString();
+            event.commit();
+        }
+
+        for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+            System.out.printf("Encountered error while loading %s (skipped)%n", failure);
+        }
+
+        if (ConfigMenu.PIN_LEVELS > 0) {
+            long pinned = index.pin(ConfigMenu.PIN_LEVELS, ConfigMenu.PIN_MEGABYTES * 1024L * 1024L);
+            System.out.printf("Pinned %.1f MB of sequences from the top %d levels.%n", pinned / 1048576.0, ConfigMenu.PIN_LEVELS);
+        }
+
+        DebugHelper.getInstance().snapshotAndReset().print();
+        System.out.printf("Done in %d us. (%d nodes)%n", elapsed / 1000, index.size());
+    }
+
+    /**
+     * Load the FASTA sequences from some files (or folders), as they're loaded.
+     * Files that don't work are skipped and reported at the end.
+     * .multifasta files are split into their records, if enabled in the config.
+     * @param fileList The files to load
+     * @return the loaded sequences, in whatever order they finish loading
+     */
+    public static Iterator<FASTAFile> loadFiles(List<File> fileList) {
+        return loadFiles(fileList, ConfigMenu.INGEST_THREADS);
+    }
+
+    /**
+     * Same as loadFiles(), but with a given number of loading threads.
+     * @param fileList The files to load
+     * @param threads The number of threads reading files; with just one, the sequences come out in the same order
+     *                as the files (and the records in them), e.g. for printing results in the order they were asked for
+     * @return the loaded sequences
+     */
+    public static Iterator<FASTAFile> loadFiles(List<File> fileList, int threads) {
+        IngestionPipeline pipeline = new IngestionPipeline(fileList, null, threads);
+
+        return new Iterator<FASTAFile>() {
+            @Override
+            public boolean hasNext() {
+                if (pipeline.hasNext()) return true;
+
+                for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+                    System.out.printf("Encountered error while loading %s (skipped)%n", failure);
                 }
+                return false;
+            }
+
+            @Override
+            public FASTAFile next() {
+                return pipeline.next();
+            }
+        };
+    }
+
+    /**
+     * Get an index that is guaranteed to return exact results, building it if necessary.
+     * @return the ground-truth index
+     */
+    public SearchIndex<FASTAFile> getGroundTruth() {
+        if (index instanceof LinearScanIndex) {
+            return index;
+        }
 
-                // Return an empty stream if we couldn't get it working.
-                return Stream.empty();
-            })
-            .filter(Objects::nonNull) // remove all nulls (there shouldn't be any)
-            .iterator()
-        );
-        DebugHelper.getInstance().lap();
-        System.out.printf("Done in %d us. (%d nodes)%n", watch.tock() / 1000, tree.getSize());
+        if (groundTruth == null) {
+            System.out.println("Loading all sequences for exhaustive search...");
+            groundTruth = SearchIndex.create(SearchIndex.Type.LINEAR_SCAN);
+            groundTruth.build(index.nodes().iterator());
+        }
+
+        return groundTruth;
     }
 
     /**
@@ -117,32 +178,256 @@ public class ProteinSearch {
         // get the filename of the sequence we want
         String fn = Prompt.nextLine(scanner, "FASTA Filename:");
 
-        DebugHelper.getInstance().lap();
+        DebugHelper.getInstance().snapshotAndReset().print();
         FASTAFile query = new FASTAFile(fn);
 
         try {
             String data = query.getFASTAData();
             System.out.printf("Loaded FASTA sequence: %s%n", query.toFancyString());
 
-            DebugHelper.getInstance().lap();
+            DebugHelper.getInstance().snapshotAndReset().print();
             FASTAFile.clearCache();
 
+            // an exhaustive search is just an exact one, and nothing beats the linear scan at that
+            SearchIndex<FASTAFile> engine = exhaustive ? getGroundTruth() : index;
+
+            SearchTrace trace = ConfigMenu.EXPLAIN_SEARCHES ? new SearchTrace().begin() : null;
+
             Stopwatch watch = Stopwatch.tick();
-            List<AssociatedPriorityQueue.Item<VantagePointTree<FASTAFile>>> results = tree.search(data, ConfigMenu.NUM_NEIGHBORS, exhaustive);
-            DebugHelper.getInstance().lap();
+            SearchOptions<FASTAFile> options = new SearchOptions<FASTAFile>()
+                .withMaxDistanceCalls(exhaustive ? 0 : ConfigMenu.SEARCH_MAX_DISTANCE_CALLS);
+            if (!exhaustive && ConfigMenu.SEARCH_TIME_LIMIT_MS > 0) {
+                options.withTimeLimit(ConfigMenu.SEARCH_TIME_LIMIT_MS);
+            }
+
+            // show how it's going, at most a few times a second
+            long started = System.nanoTime();
+            long[] lastShown = {started};
+            options.withListener(interim -> {
+                if (System.nanoTime() - lastShown[0] > 250_000_000L) {
+                    lastShown[0] = System.nanoTime();
+                    System.out.printf("  ...best so far after %d ms: %s%n", (lastShown[0] - started) / 1_000_000,
+                        interim.stream().map(item -> item.priority).collect(Collectors.toList()));
+                }
+            });
 
-            System.out.printf("Found these results in %d us:%n", watch.tock() / 1000);
+            SearchResult<FASTAFile> result;
+            try {
+                result = engine.knn(data, ConfigMenu.NUM_NEIGHBORS, options);
+            } finally {
+                if (trace != null) trace.end();
+            }
+            long elapsed = watch.tock();
+            QUERY_TIME.record(elapsed);
+            DebugHelper.getInstance().snapshotAndReset().print();
+
+            List<AssociatedPriorityQueue.Item<FASTAFile>> results = result.results;
+            System.out.printf("Found these results in %d us:%n", elapsed / 1000);
             for (int i = 0; i < results.size(); i++) {
-                AssociatedPriorityQueue.Item<VantagePointTree<FASTAFile>> item = results.get(i);
+                AssociatedPriorityQueue.Item<FASTAFile> item = results.get(i);
+
+                System.out.printf("%2d) Distance %5d, %s%n", i + 1, item.priority, item.data.toFancyString());
+            }
 
-                System.out.printf("%2d) Distance %5d, %s%n", i + 1, item.priority, item.data.root.toFancyString());
+            if (!result.exact) {
+                System.out.printf(
+                    "NOTE: The search ran out of time (or distance calculations), so these are the best found so far.%n"
+                    + "Anything it missed is at least distance %d away.%n", result.lowerBound
+                );
             }
+
+            if (trace != null) {
+                trace.print();
+                lastTrace = trace;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to load FASTA sequence! Try again.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Find every sequence within some distance of a FASTA sequence.
+     * Results are printed as they're found, so there's no waiting for the whole search to see the first ones.
+     */
+    public void doRangeSearch() {
+        String fn = Prompt.nextLine(scanner, "FASTA Filename:");
+        int radius = Prompt.nextInt(scanner, "Maximum edit distance:", 0, 1_000_000);
+
+        FASTAFile query = new FASTAFile(fn);
+
+        try {
+            String data = query.getFASTAData();
+            System.out.printf("Loaded FASTA sequence: %s%n", query.toFancyString());
+
+            DebugHelper.getInstance().snapshotAndReset().print();
+            FASTAFile.clearCache();
+
+            long[] found = {0};
+            Stopwatch watch = Stopwatch.tick();
+            index.range(data, radius, item -> {
+                found[0]++;
+                printResult(String.format("%5d)", found[0]), item);
+            });
+            long elapsed = watch.tock();
+            DebugHelper.getInstance().snapshotAndReset().print();
+
+            System.out.printf("Found %d sequences within distance %d in %d us.%n", found[0], radius, elapsed / 1000);
         } catch (IOException e) {
             System.out.println("Failed to load FASTA sequence! Try again.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Get a VP tree of every indexed sequence, for the whole-corpus operations.
+     * This is the index's own tree if it has one (see SearchIndex.getTree()); otherwise a temporary one is built.
+     * @return the tree
+     */
+    private VantagePointTree<FASTAFile> getCorpusTree() {
+        VantagePointTree<FASTAFile> tree = index.getTree();
+        if (tree != null || index.size() == 0) {
+            return tree;
+        }
+
+        System.out.println("The index doesn't have a VP tree of its own; building a temporary one...");
+        return VantagePointTree.buildFromIterator(index.nodes().iterator());
+    }
+
+    /**
+     * @param tree A tree from getCorpusTree()
+     * @return how to get every indexed copy of the sequence of one of its nodes
+     */
+    private Function<FASTAFile, List<FASTAFile>> getCorpusDuplicates(VantagePointTree<FASTAFile> tree) {
+        // a temporary tree has every node in it already
+        return tree != null && tree == index.getTree() ? index::getDuplicates : List::of;
+    }
+
+    /**
+     * Find every pair of indexed sequences within some distance of each other, and write them to a file.
+     */
+    public void doSelfJoin() {
+        int radius = Prompt.nextInt(scanner, "Maximum edit distance:", 0, 1_000_000);
+        String fn = Prompt.nextLine(scanner, "Write the pairs to:");
+
+        DebugHelper.getInstance().snapshotAndReset().print();
+        Stopwatch watch = Stopwatch.tick();
+        VantagePointTree<FASTAFile> tree = getCorpusTree();
+        ForkJoinPool pool = new ForkJoinPool(ConfigMenu.INGEST_THREADS);
+
+        try (SelfJoin.Writer<FASTAFile> writer = new SelfJoin.Writer<>(new File(fn))) {
+            SelfJoin<FASTAFile> join = new SelfJoin<>(radius, writer);
+            join.run(tree, pool, getCorpusDuplicates(tree));
+            long elapsed = watch.tock();
+            DebugHelper.getInstance().snapshotAndReset().print();
+
+            System.out.printf(
+                "Found %d pairs within distance %d in %d us (%d distances calculated).%n",
+                join.getFound(), radius, elapsed / 1000, join.getMeasured()
+            );
+        } catch (IOException e) {
+            System.out.println("Failed to write the pairs! Try again.");
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Find the k nearest neighbors of every indexed sequence, and save the graph to a file (see KnnGraph.write()).
+     * Every sequence is kept in memory while it runs.
+     */
+    public void doKnnGraph() {
+        int k = Prompt.nextInt(scanner, "Number of neighbors:", 1, 1000);
+        String fn = Prompt.nextLine(scanner, "Save the graph to:");
+
+        DebugHelper.getInstance().snapshotAndReset().print();
+        Stopwatch watch = Stopwatch.tick();
+
+        AtomicLong measured = new AtomicLong();
+        VantagePointTree<FASTAFile> tree = getCorpusTree();
+        ForkJoinPool pool = new ForkJoinPool(ConfigMenu.INGEST_THREADS);
+        KnnGraph graph;
+        try {
+            graph = KnnGraph.build(tree, k, pool, measured, getCorpusDuplicates(tree));
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = watch.tock();
+        DebugHelper.getInstance().snapshotAndReset().print();
+
+        try {
+            graph.write(new File(fn));
+            System.out.printf(
+                "Found the %d nearest neighbors of %d sequences in %d us (%d distances calculated).%n",
+                k, graph.size(), elapsed / 1000, measured.get()
+            );
+        } catch (IOException e) {
+            System.out.println("Failed to save the graph! Try again.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Print a search result.
+     * @param prefix Printed before the result (e.g. its rank)
+     * @param item The result
+     */
+    private static void printResult(String prefix, AssociatedPriorityQueue.Item<FASTAFile> item) {
+        try {
+            System.out.printf("%s Distance %5d, %s%n", prefix, item.priority, item.data.toFancyString());
+        } catch (IOException e) {
+            System.out.printf("%s Distance %5d, %s (couldn't load the description)%n", prefix, item.priority, item.data);
+        }
+    }
+
+    /**
+     * Search for every sequence in some query files without any prompts, printing tab-separated results:
+     * the query, the rank of the result (in the order it was found, for range searches), the distance,
+     * the length of the result, and its description. Queries are answered in the order they're given.
+     * @param queryFiles The query files (or folders); .multifasta files search every record
+     * @param k The number of neighbors to find, if radius is negative
+     * @param radius If not negative, find every sequence within this distance instead
+     * @param out Where to print the results
+     */
+    public void runBatch(List<File> queryFiles, int k, int radius, PrintStream out) {
+        // load them all first, so the loading progress doesn't end up in the middle of the results
+        // (one thread, so they stay in order)
+        List<FASTAFile> queries = new ArrayList<>();
+        loadFiles(queryFiles, 1).forEachRemaining(queries::add);
+
+        out.println("query\trank\tdistance\tlength\tdescription");
+
+        for (FASTAFile query : queries) {
+            try {
+                String data = query.getFASTAData();
+                String name = query.getDescription().split("\\s", 2)[0];
+                int[] rank = {0};
+
+                Consumer<AssociatedPriorityQueue.Item<FASTAFile>> print = item -> {
+                    rank[0]++;
+                    String description;
+                    try {
+                        description = item.data.getDescription();
+                    } catch (IOException e) {
+                        description = item.data.toString();
+                    }
+                    out.printf("%s\t%d\t%d\t%d\t%s%n", name, rank[0], item.priority, item.data.getLength(), description);
+                };
+
+                if (radius >= 0) {
+                    index.range(data, radius, print);
+                } else {
+                    index.knn(data, k).forEach(print);
+                }
+            } catch (IOException e) {
+                System.err.printf("Failed to load query %s (skipped)%n", query);
+            }
+        }
+
+        out.flush();
+    }
+
     /**
      * Run the CLI app until the user exits.
      */
@@ -151,9 +436,28 @@ public class ProteinSearch {
         prompt.setQuery("What do you want to do?");
 
         prompt.addVoidOption("Perform a search", p -> doSearch(false));
+        prompt.addVoidOption("Find every sequence within a distance", p -> doRangeSearch());
+        prompt.addVoidOption("Find every pair of sequences within a distance", p -> doSelfJoin());
+        prompt.addVoidOption("Build the k-nearest-neighbor graph", p -> doKnnGraph());
         prompt.addVoidOption("[debug] Perform a long, exhaustive search", p -> doSearch(true));
         prompt.addVoidOption("[debug] Change configuration options", ConfigMenu::displayMenu);
-        prompt.addVoidOption("[debug] Print tree (probably a bad idea)", p -> tree.print());
+        prompt.addVoidOption("[debug] Export the last search trace as JSON", p -> {
+            if (lastTrace == null) {
+                System.out.println("No trace yet. Enable search traces in the config menu, then search.");
+                return;
+            }
+
+            String path = Prompt.nextLine(p.getScanner(), "Output filename:");
+
+            try {
+                Files.writeString(Paths.get(path), lastTrace.toJSON());
+                System.out.printf("Wrote %s.%n", path);
+            } catch (IOException e) {
+                System.out.println("Failed to write the trace!");
+                e.printStackTrace();
+            }
+        });
+        prompt.addVoidOption("[debug] Print tree (probably a bad idea)", p -> index.print());
         prompt.addVoidOption("[debug] Verify tree", p -> {
             boolean assertionsEnabled = false;
 
@@ -169,7 +473,7 @@ public class ProteinSearch {
             }
 
             try {
-                tree.verify();
+                index.verify();
             } catch (AssertionError error) {
                 System.out.println("[!!!] Verification failed!");
                 error.printStackTrace();
@@ -191,25 +495,36 @@ public class ProteinSearch {
     }
 
     public static void main(String[] args) {
-        // Our awful recursive edit distance implementation loves to blow through the stack.
-        // Who would have thought...
-        // It's probably too late to submit another project proposal, so let's hack together some other solution...
-        // We can just run this in a new Thread with a different stack size.
-        // You can change to a better implementation in the debug settings
-        Thread workaroundThread = new Thread(null, new Runnable() {
-            @Override
-            public void run() {
-                String dir = args.length > 0 ? args[0] : ".";
-                new ProteinSearch(dir).run();
+        String dir = args.length > 0 && !args[0].startsWith("--") ? args[0] : ".";
+        int batch = Arrays.asList(args).indexOf("--batch");
+
+        if (batch < 0) {
+            new ProteinSearch(dir).run();
+            return;
+        }
+
+        // batch mode: ProteinSearch <directory> --batch [--k N] [--radius R] <query files...>
+        int k = ConfigMenu.NUM_NEIGHBORS;
+        int radius = -1;
+        List<File> queryFiles = new ArrayList<>();
+        for (int i = batch + 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--k": k = Integer.parseInt(args[++i]); break;
+                case "--radius": radius = Integer.parseInt(args[++i]); break;
+                default: queryFiles.add(new File(args[i]));
             }
-        }, "'why did i have to make it recursive' Thread", 1L << 28);
-        
-        workaroundThread.start();
+        }
 
-        try {
-            workaroundThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if (queryFiles.isEmpty()) {
+            System.out.println("Usage: ProteinSearch <directory> --batch [--k N] [--radius R] <query files...>");
+            return;
         }
+
+        // only the results go to stdout, so they can be piped straight into something else;
+        // everything else (build progress, stats, errors) goes to stderr
+        PrintStream results = System.out;
+        System.setOut(System.err);
+
+        new ProteinSearch(dir, false).runBatch(queryFiles, k, radius, results);
     }
 }
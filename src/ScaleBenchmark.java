@@ -0,0 +1,273 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A headless benchmark of how build and query costs scale with the corpus size.
+ *
+ * Point it at the folder made by makegroups.sh (with the tier folders 00, 01, ... 06 in it)
+ * and a folder of query .fasta files:
+ *
+ *   java -cp release.jar ScaleBenchmark samples queries [--csv out.csv] [--json out.json] [--tiers 00,01,02] [--engines LINEAR_SCAN,...]
+ *
+ * For every tier and every combination of index options, it builds the index, replays the queries,
+ * and reports build time, peak heap, depth, query latency percentiles, distance calls per query and prune ratio.
+ */
+public class ScaleBenchmark {
+    /**
+     * A combination of ConfigMenu options to benchmark.
+     */
+    private static class Options {
+        final SearchIndex.Type type;
+        final int fanout;
+        final int lengthBands;
+        final boolean deduplicate;
+        final boolean optimize;
+
+        Options(SearchIndex.Type type, int fanout, int lengthBands, boolean deduplicate, boolean optimize) {
+            this.type = type;
+            this.fanout = fanout;
+            this.lengthBands = lengthBands;
+            this.deduplicate = deduplicate;
+            this.optimize = optimize;
+        }
+
+        /** Apply these options to the global config. */
+        void apply() {
+            ConfigMenu.INDEX_TYPE = type;
+            ConfigMenu.VP_FANOUT = fanout;
+            ConfigMenu.LENGTH_BANDS = lengthBands;
+            ConfigMenu.DEDUPLICATE = deduplicate;
+            ConfigMenu.OPTIMIZE_TREE = optimize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s,%d,%d,%b,%b", type, fanout, lengthBands, deduplicate, optimize);
+        }
+
+        /** The same, as JSON fields (without the braces). */
+        String toJSON() {
+            return String.format(
+                Locale.ROOT,
+                "\"engine\":\"%s\",\"fanout\":%d,\"length_bands\":%d,\"deduplicate\":%b,\"optimize\":%b",
+                type, fanout, lengthBands, deduplicate, optimize
+            );
+        }
+    }
+
+    /**
+     * Every option combination worth comparing.
+     * The compliant edit distance is left out; it's far too slow to finish on the bigger tiers.
+     * @param engines The engines to include
+     * @return the combinations
+     */
+    private static List<Options> getCombinations(List<SearchIndex.Type> engines) {
+        List<Options> combinations = new ArrayList<>();
+
+        for (SearchIndex.Type type : engines) {
+            for (int bands : new int[] {1, 8}) {
+                for (boolean deduplicate : new boolean[] {false, true}) {
+                    switch (type) {
+                        case MULTI_VANTAGE_POINT_TREE:
+                            for (int fanout : new int[] {2, 4, 16}) {
+                                combinations.add(new Options(type, fanout, bands, deduplicate, false));
+                            }
+                            break;
+                        case VANTAGE_POINT_TREE:
+                            combinations.add(new Options(type, ConfigMenu.VP_FANOUT, bands, deduplicate, false));
+                            combinations.add(new Options(type, ConfigMenu.VP_FANOUT, bands, deduplicate, true));
+                            break;
+                        default:
+                            combinations.add(new Options(type, ConfigMenu.VP_FANOUT, bands, deduplicate, false));
+                    }
+                }
+            }
+        }
+
+        return combinations;
+    }
+
+    /**
+     * Reset the peak usage of every heap memory pool.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return the peak heap usage since the last reset, in bytes (summed over pools, so a slight overestimate)
+     */
+    private static long getPeakHeap() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) total += pool.getPeakUsage().getUsed();
+        }
+        return total;
+    }
+
+    /**
+     * @param sorted sorted values
+     * @param p the percentile, from 0 to 100
+     * @return the value at that percentile
+     */
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: ScaleBenchmark <samples dir> <queries dir> [--csv file] [--json file] [--tiers a,b] [--engines A,B] [--seed n]");
+            return;
+        }
+
+        File samples = new File(args[0]);
+        File queryDir = new File(args[1]);
+        String csvPath = null;
+        String jsonPath = null;
+        List<String> tiers = null;
+        List<SearchIndex.Type> engines = Arrays.asList(SearchIndex.Type.values());
+        long seed = 42;
+
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--csv": csvPath = args[++i]; break;
+                case "--json": jsonPath = args[++i]; break;
+                case "--tiers": tiers = Arrays.asList(args[++i].split(",")); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--engines":
+                    engines = new ArrayList<>();
+                    for (String name : args[++i].split(",")) engines.add(SearchIndex.Type.valueOf(name));
+                    break;
+                default:
+                    System.out.printf("Unknown option %s%n", args[i]);
+                    return;
+            }
+        }
+
+        // the fixed query set
+        List<String> queries = new ArrayList<>();
+        File[] queryFiles = queryDir.listFiles((dir, name) -> name.endsWith(".fasta"));
+        Arrays.sort(queryFiles);
+        for (File file : queryFiles) {
+            queries.add(new FASTAFile(file.getAbsolutePath()).getFASTAData());
+        }
+
+        File[] tierDirs = samples.listFiles(File::isDirectory);
+        Arrays.sort(tierDirs);
+
+        String header = "tier,files,engine,fanout,length_bands,deduplicate,optimize,nodes,build_ms,peak_heap_mb,depth,"
+            + "query_p50_us,query_p99_us,distance_calls_per_query,prune_ratio";
+        List<String> rows = new ArrayList<>();
+        List<String> json = new ArrayList<>();
+        System.out.println(header);
+
+        for (File tier : tierDirs) {
+            if (tiers != null && !tiers.contains(tier.getName())) continue;
+
+            List<File> files = new ArrayList<>(Arrays.asList(tier.listFiles()));
+            // same shuffle as ProteinSearch, but repeatable
+            Collections.sort(files);
+            Collections.shuffle(files, new Random(seed));
+
+            for (Options options : getCombinations(engines)) {
+                options.apply();
+
+                System.gc();
+                resetPeakHeap();
+                FASTAFile.clearCache();
+                DebugHelper.getInstance().reset();
+
+                Stopwatch watch = Stopwatch.tick();
+                SearchIndex<FASTAFile> index = SearchIndex.fromConfig();
+                // same as ProteinSearch.loadFiles(), but closed if the build fails
+                IngestionPipeline pipeline = new IngestionPipeline(files, null, ConfigMenu.INGEST_THREADS);
+                try (pipeline) {
+                    index.build(pipeline);
+                }
+                long buildTime = watch.tock();
+                long peakHeap = getPeakHeap();
+                for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+                    System.out.printf("Encountered error while loading %s (skipped)%n", failure);
+                }
+
+                long[] latencies = new long[queries.size()];
+                long distanceCalls = 0;
+
+                for (int i = 0; i < queries.size(); i++) {
+                    // same as the CLI
+                    FASTAFile.clearCache();
+                    DebugHelper.getInstance().reset();
+
+                    watch = Stopwatch.tick();
+                    index.knn(queries.get(i), ConfigMenu.NUM_NEIGHBORS);
+                    latencies[i] = watch.tock();
+                    distanceCalls += DebugHelper.getInstance().get("EditDistance.measure");
+                }
+                Arrays.sort(latencies);
+
+                double callsPerQuery = queries.isEmpty() ? 0 : (double) distanceCalls / queries.size();
+                // the fraction of the corpus we didn't have to measure;
+                // with deduplication on, only one copy of each sequence is ever measured
+                Map<String, Long> stats = index.stats();
+                long measurable = stats.getOrDefault("unique", (long) index.size());
+                double pruneRatio = measurable == 0 ? 0 : 1 - callsPerQuery / measurable;
+                long depth = stats.getOrDefault("depth", 0L);
+                double buildMs = buildTime / 1e6;
+                double peakHeapMb = peakHeap / 1e6;
+                double p50 = percentile(latencies, 50) / 1e3;
+                double p99 = percentile(latencies, 99) / 1e3;
+
+                String row = String.format(
+                    Locale.ROOT,
+                    "%s,%d,%s,%d,%.1f,%.1f,%d,%.1f,%.1f,%.1f,%.4f",
+                    tier.getName(), files.size(), options, index.size(), buildMs, peakHeapMb,
+                    depth, p50, p99, callsPerQuery, pruneRatio
+                );
+                rows.add(row);
+                index.close();
+                System.out.println(row);
+
+                // tier names look numeric ("00") but aren't valid JSON numbers, so they're quoted
+                json.add(String.format(
+                    Locale.ROOT,
+                    "{\"tier\":\"%s\",\"files\":%d,%s,\"nodes\":%d,\"build_ms\":%.1f,\"peak_heap_mb\":%.1f,\"depth\":%d,"
+                        + "\"query_p50_us\":%.1f,\"query_p99_us\":%.1f,\"distance_calls_per_query\":%.1f,\"prune_ratio\":%.4f}",
+                    tier.getName(), files.size(), options.toJSON(), index.size(), buildMs, peakHeapMb,
+                    depth, p50, p99, callsPerQuery, pruneRatio
+                ));
+            }
+        }
+
+        if (csvPath != null) {
+            try (PrintStream out = new PrintStream(csvPath)) {
+                out.println(header);
+                rows.forEach(out::println);
+            }
+        }
+
+        if (jsonPath != null) {
+            try (PrintStream out = new PrintStream(jsonPath)) {
+                out.println("[");
+                for (int i = 0; i < json.size(); i++) {
+                    out.printf("  %s%s%n", json.get(i), i + 1 < json.size() ? "," : "");
+                }
+                out.println("]");
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for a vp-tree search (see VantagePointTree.search).
+ */
+@Name("ProteinSearch.Search")
+@Label("Search")
+@Category("ProteinSearch")
+@Description("A k-nearest-neighbor search of the vp-tree")
+public class SearchEvent extends Event {
+    @Label("Query Length")
+    public int queryLength;
+
+    @Label("k")
+    public int k;
+
+    @Label("Nodes Visited")
+    public long nodesVisited;
+
+    @Label("Distance Calls")
+    public long distanceCalls;
+
+    @Label("Result Distance")
+    @Description("Distance of the worst returned result, or -1 if there were none")
+    public int resultDistance;
+}
@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A nearest-neighbor index over sequence nodes.
+ *
+ * ProteinSearch only talks to this interface, so the engine behind it
+ * can be swapped out in the debug menu without touching the CLI code.
+ */
+public interface SearchIndex<T extends VantagePointTree.Node> {
+    /**
+     * The available index engines.
+     */
+    public static enum Type {
+        /** The binary vp-tree (see VantagePointTree.java). */
+        VANTAGE_POINT_TREE,
+        /** The m-ary vp-tree (see MultiVantagePointTree.java), with ConfigMenu.VP_FANOUT shells per node. */
+        MULTI_VANTAGE_POINT_TREE,
+        /** Measure every single sequence, in parallel. Slow for big corpora, but always exact. */
+        LINEAR_SCAN,
+    }
+
+    /**
+     * Create a new, empty index of the given type.
+     * @param <X> The Node type
+     * @param type Which engine to use
+     * @return the empty index; call build() to fill it
+     */
+    public static <X extends VantagePointTree.Node> SearchIndex<X> create(Type type) {
+        switch (type) {
+            case MULTI_VANTAGE_POINT_TREE:
+                return new MultiVantagePointTree<>(ConfigMenu.VP_FANOUT);
+            case LINEAR_SCAN:
+                return new LinearScanIndex<>();
+            case VANTAGE_POINT_TREE:
+            default:
+                return new VantagePointTreeIndex<>();
+        }
+    }
+
+    /**
+     * Create a new, empty index as configured in the debug menu (engine and any wrappers around it).
+     * @param <X> The Node type
+     * @return the empty index; call build() to fill it
+     */
+    public static <X extends VantagePointTree.Node> SearchIndex<X> fromConfig() {
+        Type type = ConfigMenu.INDEX_TYPE;
+        int shards = ConfigMenu.SHARDS;
+        Supplier<SearchIndex<X>> engine = shards > 1
+            ? () -> new ShardedIndex<>(shards, () -> create(type))
+            : () -> create(type);
+
+        SearchIndex<X> index = ConfigMenu.LENGTH_BANDS > 1
+            ? new LengthBandedIndex<>(ConfigMenu.LENGTH_BANDS, engine)
+            : engine.get();
+
+        if (ConfigMenu.DEDUPLICATE) {
+            index = new DeduplicatingIndex<>(index);
+        }
+
+        if (ConfigMenu.RESULT_CACHE_SIZE > 0) {
+            index = new CachingIndex<>(index, ConfigMenu.RESULT_CACHE_SIZE, ConfigMenu.RESULT_CACHE_NEAR_DISTANCE);
+        }
+
+        return index;
+    }
+
+    /**
+     * Index all the given nodes. Should only be called once per instance.
+     * @param nodes The nodes to add
+     */
+    void build(Iterator<T> nodes);
+
+    /**
+     * Find the k nearest neighbors of a sequence.
+     * @param query The sequence to search for
+     * @param k The maximum number of neighbors to return
+     * @return The neighbors with their distances as priorities, closest first
+     */
+    List<AssociatedPriorityQueue.Item<T>> knn(String query, int k);
+
+    /**
+     * Find the k nearest neighbors of a sequence, ignoring anything farther away than maxDistance.
+     * If you already know k nodes within maxDistance (e.g. from a similar query), the results are the same
+     * as knn(query, k), but engines that prune can start with a much smaller radius.
+     * @param query The sequence to search for
+     * @param k The maximum number of neighbors to return
+     * @param maxDistance The farthest a neighbor can be (inclusive)
+     * @return The neighbors within maxDistance with their distances as priorities, closest first
+     */
+    default List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        List<AssociatedPriorityQueue.Item<T>> results = new ArrayList<>(knn(query, k));
+        results.removeIf(item -> item.priority > maxDistance);
+        return results;
+    }
+
+    /**
+     * Find the k nearest neighbors of a sequence, but give up when the options say to (see SearchOptions).
+     * Engines that can't stop early just do the whole search, and return exact results.
+     * @param query The sequence to search for
+     * @param k The maximum number of neighbors to return
+     * @param options The deadline, distance budget, etc.
+     * @return The best neighbors found, closest first, and whether they're exact
+     */
+    default SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        List<AssociatedPriorityQueue.Item<T>> results = knn(query, k, options.maxDistance);
+        options.emit(results);
+        return SearchResult.exact(results, 0);
+    }
+
+    /**
+     * Find every node within a given distance of a sequence.
+     * Results are handed to sink as they are found, in no particular order.
+     * @param query The sequence to search for
+     * @param radius The maximum distance (inclusive)
+     * @param sink Receives each matching node with its distance as the priority
+     */
+    void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink);
+
+    /**
+     * Keep the sequences of the nodes near the root in memory for good (see VantagePointTree.Node.pin()).
+     * Every search starts at the root and measures the same few hundred vantage points,
+     * so these would otherwise be read from disk over and over.
+     * Indexes without a root (or that keep everything in memory already) don't have to do anything.
+     * @param levels How many levels to pin, counting the root
+     * @param maxBytes Stop once this many bytes are pinned
+     * @return how many bytes were pinned
+     */
+    default long pin(int levels, long maxBytes) {
+        return 0;
+    }
+
+    /**
+     * Get the VP tree behind the index, for whole-corpus jobs (see SelfJoin and KnnGraph) that would rather
+     * not build their own. If the index collapses identical sequences, the tree only has one node per distinct
+     * sequence; getDuplicates() has the rest.
+     * @return the tree, or null if this index doesn't have one
+     */
+    default VantagePointTree<T> getTree() {
+        return null;
+    }
+
+    /**
+     * Get every indexed node with the same sequence as a node of getTree().
+     * @param node A node of the tree
+     * @return the node and all its duplicates
+     */
+    default List<T> getDuplicates(T node) {
+        return List.of(node);
+    }
+
+    /**
+     * Get a number that goes up whenever the nodes change after build() (e.g. ShardedIndex.rebuildShard()),
+     * so wrappers that remember results (see CachingIndex) can tell theirs are out of date.
+     * @return the version
+     */
+    default long getVersion() {
+        return 0;
+    }
+
+    /**
+     * Stop any threads the index keeps around. It can't be used afterwards.
+     */
+    default void close() {}
+
+    /**
+     * @return the number of indexed nodes
+     */
+    int size();
+
+    /**
+     * Get some engine-specific numbers describing the index (e.g. depth), for debugging and benchmarks.
+     * @return statistics keyed by name
+     */
+    Map<String, Long> stats();
+
+    /**
+     * @return every indexed node, in no particular order
+     */
+    List<T> nodes();
+
+    /**
+     * Pretty-print the index. Probably a bad idea for big ones.
+     */
+    default void print() {
+        for (T node : nodes()) {
+            System.out.printf("- %s%n", node);
+        }
+    }
+
+    /**
+     * Verify the integrity of the index (requires assertions to be enabled).
+     */
+    default void verify() {}
+}
@@ -0,0 +1,123 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Limits on a search, for when a good answer soon beats an exact answer eventually.
+ *
+ * When the deadline passes or the distance budget runs out, the search stops and returns the best results so far
+ * (see SearchResult for whether they turned out exact anyway). The defaults don't limit anything.
+ */
+public class SearchOptions<T> {
+    /** When to give up, as a System.nanoTime() value, or 0 for never. */
+    public long deadline = 0;
+    /** The most exact distance calculations to do, or 0 for no limit. */
+    public long maxDistanceCalls = 0;
+    /** The farthest a result can be (inclusive). See SearchIndex.knn(query, k, maxDistance). */
+    public int maxDistance = VantagePointTree.NO_LIMIT;
+    /** If not null, receives the best results so far (closest first) every time they improve. */
+    public Consumer<List<AssociatedPriorityQueue.Item<T>>> listener = null;
+    /**
+     * If not null, the k-th best distance found by any of several searches for the same query and k
+     * running at once (e.g. one per shard; see ShardedIndex). Every search prunes with it, and lowers it
+     * when it does better, so a good hit in one prunes the others.
+     */
+    public AtomicInteger sharedTau = null;
+    /** If not null, receives every node the search measures the exact distance to, with the distance. */
+    public ObjIntConsumer<T> onMeasured = null;
+
+    /**
+     * Give up after some time from now.
+     * @param millis How long the search can take, in milliseconds
+     * @return this
+     */
+    public SearchOptions<T> withTimeLimit(long millis) {
+        this.deadline = System.nanoTime() + millis * 1_000_000;
+        return this;
+    }
+
+    /**
+     * @param maxDistanceCalls The most exact distance calculations to do, or 0 for no limit
+     * @return this
+     */
+    public SearchOptions<T> withMaxDistanceCalls(long maxDistanceCalls) {
+        this.maxDistanceCalls = maxDistanceCalls;
+        return this;
+    }
+
+    /**
+     * @param maxDistance The farthest a result can be (inclusive)
+     * @return this
+     */
+    public SearchOptions<T> withMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    /**
+     * @param listener Receives the best results so far every time they improve
+     * @return this
+     */
+    public SearchOptions<T> withListener(Consumer<List<AssociatedPriorityQueue.Item<T>>> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param sharedTau The k-th best distance so far across several searches for the same query and k, shared between them
+     * @return this
+     */
+    public SearchOptions<T> withSharedTau(AtomicInteger sharedTau) {
+        this.sharedTau = sharedTau;
+        return this;
+    }
+
+    /**
+     * @param onMeasured Receives every node the search measures the exact distance to, with the distance
+     *                   (e.g. to reuse the distances for other queries; see KnnGraph)
+     * @return this
+     */
+    public SearchOptions<T> withMeasuredListener(ObjIntConsumer<T> onMeasured) {
+        this.onMeasured = onMeasured;
+        return this;
+    }
+
+    /**
+     * Copy these options, e.g. to hand a sub-index a different listener or budget.
+     * @param <U> The node type of the copy's listener
+     * @return a copy, without the listeners (the shared tau is still shared)
+     */
+    public <U> SearchOptions<U> copy() {
+        SearchOptions<U> copy = new SearchOptions<>();
+        copy.deadline = deadline;
+        copy.maxDistanceCalls = maxDistanceCalls;
+        copy.maxDistance = maxDistance;
+        copy.sharedTau = sharedTau;
+        return copy;
+    }
+
+    /**
+     * @return true if there's no deadline and no distance budget (maxDistance and the listener don't count)
+     */
+    public boolean isUnlimited() {
+        return deadline == 0 && maxDistanceCalls == 0;
+    }
+
+    /**
+     * @param distanceCalls How many exact distances the search has calculated so far
+     * @return true if the search should stop now
+     */
+    public boolean isExhausted(long distanceCalls) {
+        return (maxDistanceCalls > 0 && distanceCalls >= maxDistanceCalls)
+            || (deadline != 0 && System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Tell the listener (if any) about new results.
+     * @param results The best results so far, closest first
+     */
+    public void emit(List<AssociatedPriorityQueue.Item<T>> results) {
+        if (listener != null) listener.accept(results);
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.List;
+
+/**
+ * The results of a search that might have been cut short (see SearchOptions).
+ */
+public class SearchResult<T> {
+    /** The best results found, closest first, with their distances as priorities. */
+    public final List<AssociatedPriorityQueue.Item<T>> results;
+    /** True if these are proven to be the exact answer (the search finished, or everything it skipped was too far anyway). */
+    public final boolean exact;
+    /**
+     * If not exact, nothing the search skipped can be closer than this, so results up to this distance are correct.
+     * VantagePointTree.NO_LIMIT if exact.
+     */
+    public final int lowerBound;
+    /** The number of exact distance calculations it took. */
+    public final long distanceCalls;
+
+    public SearchResult(List<AssociatedPriorityQueue.Item<T>> results, boolean exact, int lowerBound, long distanceCalls) {
+        this.results = results;
+        this.exact = exact;
+        this.lowerBound = exact ? VantagePointTree.NO_LIMIT : lowerBound;
+        this.distanceCalls = distanceCalls;
+    }
+
+    /**
+     * @param results The exact results
+     * @param distanceCalls The number of exact distance calculations it took
+     * @return a finished search
+     */
+    public static <T> SearchResult<T> exact(List<AssociatedPriorityQueue.Item<T>> results, long distanceCalls) {
+        return new SearchResult<>(results, true, VantagePointTree.NO_LIMIT, distanceCalls);
+    }
+}
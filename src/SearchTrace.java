@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An opt-in "EXPLAIN" for a single search: how much work it did and where.
+ *
+ * While a trace is active (between begin() and end()), the search code, EditDistance,
+ * DistanceCache and FASTAFile record into it through SearchTrace.current().
+ * Traces are per-thread, so work done on other threads (e.g. by LinearScanIndex) isn't included.
+ */
+public class SearchTrace {
+    /** The active trace for each thread, if any. */
+    private static final ThreadLocal<SearchTrace> CURRENT = new ThreadLocal<>();
+
+    /**
+     * @return the trace active on this thread, or null if there isn't one
+     */
+    public static SearchTrace current() {
+        return CURRENT.get();
+    }
+
+    /** Nodes taken off the search frontier. */
+    public long nodesPopped = 0;
+    /** Nodes or subtrees skipped because a lower bound was already too big. */
+    public long prunedByLowerBound = 0;
+    /** Nodes or subtrees skipped only after measuring the exact distance. */
+    public long prunedByDistance = 0;
+    /** Calls to EditDistance.measure. */
+    public long distanceCalls = 0;
+    /** DP cells computed by those calls (the product of the lengths). */
+    public long dpCells = 0;
+    /** Distances that DistanceCache answered without measuring. */
+    public long distanceCacheHits = 0;
+    /** Sequences that FASTAFile found in its cache. */
+    public long sequenceCacheHits = 0;
+    /** Sequences that FASTAFile had to load from disk. */
+    public long sequenceCacheMisses = 0;
+    /** How many of the sequence cache hits were on pinned sequences (see SearchIndex.pin()). */
+    public long pinnedHits = 0;
+    /** How many of the sequence cache misses had already been read ahead by the prefetcher. */
+    public long prefetchHits = 0;
+    /** Bytes read from disk. */
+    public long bytesRead = 0;
+
+    /** Each time tau changed: {nanoseconds since begin(), nodes popped so far, new tau}. */
+    private final List<long[]> tauHistory = new ArrayList<>();
+
+    /** When begin() was called, from System.nanoTime(). */
+    private long startTime;
+    /** How long the traced search took, once end() is called. */
+    private long duration = 0;
+    /** The trace that was active before this one, restored by end(). */
+    private SearchTrace previous;
+
+    /**
+     * Start recording everything this thread does into this trace.
+     * @return this, for chaining
+     */
+    public SearchTrace begin() {
+        previous = CURRENT.get();
+        CURRENT.set(this);
+        startTime = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * Stop recording.
+     */
+    public void end() {
+        duration = System.nanoTime() - startTime;
+        CURRENT.set(previous);
+        previous = null;
+    }
+
+    /**
+     * Record a new value of tau (the current k-th best distance).
+     * @param tau the new value
+     */
+    public void tau(int tau) {
+        if (tauHistory.isEmpty() || tauHistory.get(tauHistory.size() - 1)[2] != tau) {
+            tauHistory.add(new long[] {System.nanoTime() - startTime, nodesPopped, tau});
+        }
+    }
+
+    /**
+     * Record a distance computation.
+     * @param lengthA the length of the first sequence
+     * @param lengthB the length of the second sequence
+     */
+    public void distance(int lengthA, int lengthB) {
+        distanceCalls++;
+        dpCells += (long) lengthA * lengthB;
+    }
+
+    /**
+     * Print a human-readable summary.
+     */
+    public void print() {
+        System.out.println("<trace>");
+        System.out.printf("  duration:              %d us%n", duration / 1000);
+        System.out.printf("  nodes popped:          %d%n", nodesPopped);
+        System.out.printf("  pruned by lower bound: %d%n", prunedByLowerBound);
+        System.out.printf("  pruned by distance:    %d%n", prunedByDistance);
+        System.out.printf("  distance calls:        %d (%d DP cells)%n", distanceCalls, dpCells);
+        System.out.printf("  distance cache hits:   %d%n", distanceCacheHits);
+        System.out.printf("  sequence cache:        %d hits (%d pinned), %d misses (%d prefetched)%n", sequenceCacheHits, pinnedHits, sequenceCacheMisses, prefetchHits);
+        System.out.printf("  bytes read:            %d%n", bytesRead);
+        System.out.println("  tau:");
+        for (long[] entry : tauHistory) {
+            System.out.printf("    %8d us, after %6d nodes: %d%n", entry[0] / 1000, entry[1], entry[2]);
+        }
+        System.out.println("</trace>");
+    }
+
+    /**
+     * Export the trace as a JSON object.
+     * @return the JSON string
+     */
+    public String toJSON() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("{");
+        builder.append("\"durationNanos\":").append(duration);
+        builder.append(",\"nodesPopped\":").append(nodesPopped);
+        builder.append(",\"prunedByLowerBound\":").append(prunedByLowerBound);
+        builder.append(",\"prunedByDistance\":").append(prunedByDistance);
+        builder.append(",\"distanceCalls\":").append(distanceCalls);
+        builder.append(",\"dpCells\":").append(dpCells);
+        builder.append(",\"distanceCacheHits\":").append(distanceCacheHits);
+        builder.append(",\"sequenceCacheHits\":").append(sequenceCacheHits);
+        builder.append(",\"sequenceCacheMisses\":").append(sequenceCacheMisses);
+        builder.append(",\"pinnedHits\":").append(pinnedHits);
+        builder.append(",\"prefetchHits\":").append(prefetchHits);
+        builder.append(",\"bytesRead\":").append(bytesRead);
+        builder.append(",\"tau\":[");
+        for (int i = 0; i < tauHistory.size(); i++) {
+            long[] entry = tauHistory.get(i);
+            if (i > 0) builder.append(",");
+            builder.append(String.format("{\"nanos\":%d,\"nodesPopped\":%d,\"tau\":%d}", entry[0], entry[1], entry[2]));
+        }
+        builder.append("]}");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Finds every pair of sequences within some edit distance of each other (a similarity self-join),
+ * e.g. for redundancy reduction or clustering, without measuring all n^2 / 2 pairs.
+ *
+ * This walks a VantagePointTree top-down. Every pair of nodes has exactly one lowest common ancestor p in the tree,
+ * and that's where the pair gets looked at, so no pair is ever measured twice:
+ * - every node under p is measured against p (which is also every pair involving p itself)
+ * - pairs with one node on each side of p can only be close if their distances to p are close too
+ *   (the triangle inequality), so each side is sorted by distance to p and only the overlapping windows are compared
+ * - those pairs are then also filtered by their distances to every other shared ancestor, and their length difference,
+ *   before any DP is done
+ * - pairs on the same side are left to the subtree
+ * Each subtree (and each window) is a task on a fork-join pool.
+ *
+ * Measuring everything against all its ancestors costs about as much as building the tree did,
+ * so most of the rest of the work is the pairs that actually are close. All the sequences are kept in memory
+ * while joining. Pairs are handed to the sink as they're found (see Writer for streaming them to a file).
+ *
+ * If the tree only has one node per distinct sequence (see DeduplicatingIndex), each pair found is handed on
+ * for every copy of both sides, and the copies of each sequence are all paired up at distance 0.
+ */
+public class SelfJoin<T extends VantagePointTree.Node> {
+    private static final DebugHelper.Counter MEASURED = DebugHelper.getInstance().counter("SelfJoin.measured");
+    private static final DebugHelper.Counter PRUNED   = DebugHelper.getInstance().counter("SelfJoin.pruned");
+    private static final DebugHelper.Counter PAIRS    = DebugHelper.getInstance().counter("SelfJoin.pairs");
+
+    /** Subtrees (and windows) smaller than this are done on one thread. */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * Receives the pairs found. Called from many threads at once.
+     */
+    public interface Sink<T> {
+        /**
+         * @param a One node
+         * @param b The other node
+         * @param distance The edit distance between them
+         */
+        void pair(T a, T b, int distance);
+    }
+
+    /**
+     * Writes the pairs as tab-separated lines (the first node, the second node, the distance) as they're found.
+     */
+    public static class Writer<T> implements Sink<T>, AutoCloseable {
+        private final PrintWriter writer;
+
+        /**
+         * @param file Where to write the pairs
+         * @throws IOException if the file couldn't be opened
+         */
+        public Writer(File file) throws IOException {
+            this.writer = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+        }
+
+        @Override
+        public synchronized void pair(T a, T b, int distance) {
+            writer.printf("%s\t%s\t%d%n", a, b, distance);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+            if (writer.checkError()) throw new IOException("couldn't write all the pairs");
+        }
+    }
+
+    /** The maximum distance for a pair (inclusive). */
+    private final int radius;
+    /** Receives the pairs. */
+    private final Sink<T> sink;
+    /** Gets every copy of a tree node's sequence (see SearchIndex.getDuplicates()). */
+    private Function<T, List<T>> duplicates = List::of;
+
+    // The tree, flattened in pre-order, so every subtree is a contiguous range of ids: its root, its left subtree, its right subtree.
+    private final List<T> nodes = new ArrayList<>();
+    /** sequences[id] is the raw data of nodes.get(id). */
+    private String[] sequences;
+    /** The number of nodes in the subtree rooted at each id. */
+    private int[] size;
+    /** The number of nodes in the left subtree of each id. */
+    private int[] leftSize;
+    /** The depth of each id (the root is 0). */
+    private int[] depth;
+    /** ancestors[id][k] is the distance from id to its ancestor at depth k. */
+    private int[][] ancestors;
+
+    /** The number of exact distances calculated. */
+    private final AtomicLong measured = new AtomicLong();
+    /** The number of pairs found. */
+    private final AtomicLong found = new AtomicLong();
+
+    /**
+     * @param radius The maximum distance for a pair (inclusive)
+     * @param sink Receives the pairs (from many threads at once)
+     */
+    public SelfJoin(int radius, Sink<T> sink) {
+        this.radius = radius;
+        this.sink = sink;
+    }
+
+    /**
+     * @return the number of exact distances calculated so far
+     */
+    public long getMeasured() {
+        return measured.get();
+    }
+
+    /**
+     * @return the number of pairs found so far
+     */
+    public long getFound() {
+        return found.get();
+    }
+
+    /**
+     * Flatten the tree into the arrays, and load every sequence.
+     * @param tree The tree
+     */
+    private void flatten(VantagePointTree<T> tree) {
+        List<VantagePointTree<T>> order = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+
+        // pre-order, without recursion (these trees can get deep); left is pushed last so it comes out first
+        ArrayDeque<VantagePointTree<T>> stack = new ArrayDeque<>();
+        ArrayDeque<int[]> info = new ArrayDeque<>(); // {depth, parent id}
+        stack.push(tree);
+        info.push(new int[] {0, -1});
+
+        while (!stack.isEmpty()) {
+            VantagePointTree<T> current = stack.pop();
+            int[] currentInfo = info.pop();
+            int id = order.size();
+
+            order.add(current);
+            depths.add(currentInfo[0]);
+            parents.add(currentInfo[1]);
+
+            if (current.getRight() != null) {
+                stack.push((VantagePointTree<T>) current.getRight());
+                info.push(new int[] {currentInfo[0] + 1, id});
+            }
+            if (current.getLeft() != null) {
+                stack.push((VantagePointTree<T>) current.getLeft());
+                info.push(new int[] {currentInfo[0] + 1, id});
+            }
+        }
+
+        int n = order.size();
+        sequences = new String[n];
+        size = new int[n];
+        leftSize = new int[n];
+        depth = new int[n];
+        ancestors = new int[n][];
+
+        for (int id = 0; id < n; id++) {
+            nodes.add(order.get(id).root);
+            sequences[id] = order.get(id).root.getRawData();
+            depth[id] = depths.get(id);
+            ancestors[id] = new int[depth[id]];
+            size[id] = 1;
+        }
+
+        // children come after their parents, so this adds up the subtree sizes bottom-up
+        for (int id = n - 1; id > 0; id--) {
+            size[parents.get(id)] += size[id];
+        }
+
+        for (int id = 0; id < n; id++) {
+            VantagePointTree<T> left = (VantagePointTree<T>) order.get(id).getLeft();
+            // the left child, if any, is always the next id
+            leftSize[id] = left == null ? 0 : size[id + 1];
+        }
+    }
+
+    /**
+     * Measure a pair, and hand it to the sink if it's close enough.
+     * @return the distance
+     */
+    private int measure(int a, int b) {
+        int dist = EditDistance.measureFast(sequences[a], sequences[b]);
+        measured.incrementAndGet();
+        MEASURED.hit();
+
+        if (dist <= radius) {
+            for (T copyA : duplicates.apply(nodes.get(a))) {
+                for (T copyB : duplicates.apply(nodes.get(b))) {
+                    found.incrementAndGet();
+                    PAIRS.hit();
+                    sink.pair(copyA, copyB, dist);
+                }
+            }
+        }
+
+        return dist;
+    }
+
+    /**
+     * Pair up the copies of one node's sequence with each other, at distance 0.
+     */
+    private void pairDuplicates(int id) {
+        List<T> copies = duplicates.apply(nodes.get(id));
+        for (int i = 0; i < copies.size(); i++) {
+            for (int j = i + 1; j < copies.size(); j++) {
+                found.incrementAndGet();
+                PAIRS.hit();
+                sink.pair(copies.get(i), copies.get(j), 0);
+            }
+        }
+    }
+
+    /**
+     * Joins a subtree with itself.
+     */
+    @SuppressWarnings("serial")
+    private class SubtreeTask extends RecursiveAction {
+        /** The root of the subtree. */
+        private final int root;
+
+        SubtreeTask(int root) {
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            int k = depth[root];
+            int first = root + 1;
+            int end = root + size[root];
+            int leftEnd = first + leftSize[root];
+
+            if (first == end) {
+                return;
+            }
+
+            // measure everything under the root against it (these are all the pairs with the root in them)
+            IntStream descendants = IntStream.range(first, end);
+            if (end - first >= PARALLEL_THRESHOLD) descendants = descendants.parallel();
+            descendants.forEach(id -> ancestors[id][k] = measure(root, id));
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(3);
+            if (leftEnd > first) tasks.add(new SubtreeTask(first));
+            if (end > leftEnd) tasks.add(new SubtreeTask(leftEnd));
+            if (leftEnd > first && end > leftEnd) tasks.add(new WindowTask(root, first, leftEnd, end));
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Joins the left subtree of a node with its right subtree.
+     */
+    @SuppressWarnings("serial")
+    private class WindowTask extends RecursiveAction {
+        private final int root;
+        private final int first;
+        private final int leftEnd;
+        private final int end;
+
+        WindowTask(int root, int first, int leftEnd, int end) {
+            this.root = root;
+            this.first = first;
+            this.leftEnd = leftEnd;
+            this.end = end;
+        }
+
+        /**
+         * @return the ids in [from, to), sorted by their distance to the root, packed as (distance << 32 | id)
+         */
+        private long[] sortByDistance(int from, int to, int k) {
+            long[] sorted = new long[to - from];
+            for (int id = from; id < to; id++) {
+                sorted[id - from] = (long) ancestors[id][k] << 32 | id;
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        @Override
+        protected void compute() {
+            int k = depth[root];
+            long[] left = sortByDistance(first, leftEnd, k);
+            long[] right = sortByDistance(leftEnd, end, k);
+
+            IntStream lefts = IntStream.range(0, left.length);
+            if ((long) left.length * right.length >= PARALLEL_THRESHOLD * PARALLEL_THRESHOLD) lefts = lefts.parallel();
+
+            lefts.forEach(i -> {
+                int a = (int) left[i];
+                int da = (int) (left[i] >>> 32);
+
+                // only the right nodes with |d(b, root) - d(a, root)| <= radius can be close to a
+                int j = lowerBound(right, (long) Math.max(0, da - radius) << 32);
+                for (; j < right.length && (int) (right[j] >>> 32) <= da + radius; j++) {
+                    int b = (int) right[j];
+
+                    if (canBeClose(a, b, k)) {
+                        measure(a, b);
+                    } else {
+                        PRUNED.hit();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param sorted A sorted array
+     * @param key The value to look for
+     * @return the index of the first element >= key
+     */
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Check the free lower bounds on the distance between two nodes: their lengths,
+     * and their distances to every ancestor they share above depth k.
+     * @return false if they're definitely too far apart
+     */
+    private boolean canBeClose(int a, int b, int k) {
+        if (Math.abs(sequences[a].length() - sequences[b].length()) > radius) {
+            return false;
+        }
+
+        int[] ancestorsA = ancestors[a];
+        int[] ancestorsB = ancestors[b];
+        for (int q = 0; q < k; q++) {
+            if (Math.abs(ancestorsA[q] - ancestorsB[q]) > radius) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find every pair of nodes in a tree within the radius.
+     * @param tree The tree
+     * @param pool The pool to run on
+     */
+    public void run(VantagePointTree<T> tree, ForkJoinPool pool) {
+        run(tree, pool, List::of);
+    }
+
+    /**
+     * Find every pair of nodes within the radius, in a tree with one node per distinct sequence.
+     * @param tree The tree
+     * @param pool The pool to run on
+     * @param duplicates Gets every copy of a tree node's sequence, including the node itself
+     */
+    public void run(VantagePointTree<T> tree, ForkJoinPool pool, Function<T, List<T>> duplicates) {
+        if (tree == null) {
+            return;
+        }
+
+        this.duplicates = duplicates;
+        flatten(tree);
+        pool.invoke(new SubtreeTask(0));
+
+        for (int id = 0; id < nodes.size(); id++) {
+            pairDuplicates(id);
+        }
+    }
+
+    /**
+     * Run the self-join from the command line.
+     * Usage: SelfJoin <directory> <radius> <output.tsv> [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: SelfJoin <directory> <radius> <output.tsv> [threads]");
+            return;
+        }
+
+        int radius = Integer.parseInt(args[1]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        // shuffled, like ProteinSearch does, so related proteins don't end up in a long chain
+        IngestionPipeline pipeline = new IngestionPipeline(List.of(new File(args[0])));
+        long start = System.nanoTime();
+        VantagePointTree<FASTAFile> tree;
+        try (pipeline) {
+            tree = VantagePointTree.buildFromIterator(pipeline);
+        }
+        System.out.printf("Built the tree in %d ms.%n", (System.nanoTime() - start) / 1_000_000);
+
+        for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+            System.out.printf("Encountered error while loading %s (skipped)%n", failure);
+        }
+
+        start = System.nanoTime();
+        try (Writer<FASTAFile> writer = new Writer<>(new File(args[2]))) {
+            SelfJoin<FASTAFile> join = new SelfJoin<>(radius, writer);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                join.run(tree, pool);
+            } finally {
+                pool.shutdown();
+            }
+
+            long n = tree == null ? 0 : tree.getSize();
+            System.out.printf(
+                "Found %d pairs within distance %d among %d sequences in %d ms, measuring %d of %d pairs.%n",
+                join.getFound(), radius, n, (System.nanoTime() - start) / 1_000_000, join.getMeasured(), n * (n - 1) / 2
+            );
+        }
+    }
+}
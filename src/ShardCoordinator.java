@@ -0,0 +1,524 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches a corpus split across several ShardServers (see ShardProtocol for the wire format).
+ *
+ * Each query goes out to every shard at once. Whenever a shard reports that its k-th best got better,
+ * the new tau is passed on to the other shards mid-query, so they can stop looking at anything farther away.
+ * The k best of all the shards' results are the answer.
+ *
+ * Shards that are down, or don't answer in time, are left out, and the answer says which ones are missing
+ * (and that it might not be exact). Dead shards are reconnected to on the next query.
+ *
+ * Usage: ShardCoordinator [--k N] [--timeout ms] --shards host:port[,host:port...] <query files...>
+ *    or: ShardCoordinator [--k N] [--timeout ms] --spawn <directory> <count> <query files...>
+ * The second form starts count local ShardServer processes over the directory first (and stops them at the end),
+ * so the whole thing can be tried out on one machine.
+ * Results are printed like ProteinSearch's batch mode: only the tab-separated results go to stdout,
+ * in the order the queries were given, and everything else goes to stderr.
+ */
+public class ShardCoordinator implements AutoCloseable {
+    private static final DebugHelper.Counter TAUS_FORWARDED = DebugHelper.getInstance().counter("ShardCoordinator.tau/forwarded");
+    private static final DebugHelper.Counter TIMEOUTS = DebugHelper.getInstance().counter("ShardCoordinator.timeout");
+    private static final DebugHelper.Counter FAILURES = DebugHelper.getInstance().counter("ShardCoordinator.failure");
+
+    /** How long to wait for a shard to accept a connection, in milliseconds. */
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    /** How much longer than the search time limit to wait for the answers to arrive, in milliseconds. */
+    private static final int GRACE_MS = 1000;
+
+    /**
+     * The answer to a query.
+     */
+    public static class Answer {
+        /** The k best hits from the shards that answered, closest first. */
+        public final List<ShardProtocol.Hit> hits;
+        /** Whether the hits are exact: every shard answered, with exact results (or ones that can't matter). */
+        public final boolean exact;
+        /** The shards that didn't answer (down, or too slow). */
+        public final List<String> missing;
+        /** The total distance calculations of the shards that answered. */
+        public final long distanceCalls;
+
+        Answer(List<ShardProtocol.Hit> hits, boolean exact, List<String> missing, long distanceCalls) {
+            this.hits = hits;
+            this.exact = exact;
+            this.missing = missing;
+            this.distanceCalls = distanceCalls;
+        }
+    }
+
+    /**
+     * A connection to one shard server.
+     */
+    private class Shard {
+        final String host;
+        final int port;
+        /** null when not connected. */
+        Socket socket;
+        DataOutputStream out;
+        /** The number of nodes the shard has, from its hello. */
+        int size;
+
+        Shard(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Connect, if we aren't already.
+         * @return whether we're connected
+         */
+        synchronized boolean ensureConnected() {
+            if (socket != null) {
+                return true;
+            }
+
+            Socket connecting = new Socket();
+            try {
+                connecting.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                connecting.setTcpNoDelay(true);
+                connecting.setSoTimeout(CONNECT_TIMEOUT_MS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connecting.getInputStream()));
+                size = ShardProtocol.readHello(in)[2];
+                // after the hello, messages come whenever they come
+                connecting.setSoTimeout(0);
+
+                socket = connecting;
+                out = new DataOutputStream(new BufferedOutputStream(connecting.getOutputStream()));
+
+                Thread reader = new Thread(() -> read(connecting, in), "coordinator-" + this);
+                reader.setDaemon(true);
+                reader.start();
+                return true;
+            } catch (IOException e) {
+                try {
+                    connecting.close();
+                } catch (IOException ignored) {
+                    // it was never really open
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Read messages from the shard until the connection drops.
+         */
+        private void read(Socket connection, DataInputStream in) {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == ShardProtocol.TAU) {
+                        int requestId = in.readInt();
+                        int tau = in.readInt();
+                        Pending query = pending.get(requestId);
+                        if (query != null) query.onTau(this, tau);
+                    } else if (type == ShardProtocol.RESULT) {
+                        ShardProtocol.Result result = ShardProtocol.readResult(in);
+                        Pending query = pending.get(result.requestId);
+                        if (query != null) query.onResult(this, result);
+                    } else {
+                        throw new IOException("unknown message type " + type);
+                    }
+                }
+            } catch (IOException e) {
+                disconnect(connection);
+            }
+        }
+
+        /**
+         * Drop the connection (if it's still this one), and give up on this shard for every query in flight.
+         */
+        void disconnect(Socket connection) {
+            synchronized (this) {
+                if (socket != connection) return;
+                socket = null;
+                out = null;
+            }
+
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // it's gone either way
+            }
+
+            FAILURES.hit();
+            for (Pending query : pending.values()) {
+                query.onFailure(this);
+            }
+        }
+
+        /**
+         * Send a query.
+         * @return false if the shard isn't connected (or the send failed)
+         */
+        boolean sendQuery(int requestId, int k, int timeLimit, String query) {
+            Socket connection;
+            synchronized (this) {
+                connection = socket;
+                if (connection == null) return false;
+                try {
+                    ShardProtocol.writeQuery(out, requestId, k, VantagePointTree.NO_LIMIT, timeLimit, query);
+                    return true;
+                } catch (IOException e) {
+                    // handled below, without the lock
+                }
+            }
+            disconnect(connection);
+            return false;
+        }
+
+        /**
+         * Pass on a tighter tau. Failures are ignored; the reader notices dead connections.
+         */
+        synchronized void sendTau(int requestId, int tau) {
+            if (out == null) return;
+            try {
+                ShardProtocol.writeTau(out, requestId, tau);
+                TAUS_FORWARDED.hit();
+            } catch (IOException e) {
+                // the reader will notice
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * A query in flight.
+     */
+    private class Pending {
+        final int requestId;
+        /** The best k-th distance any shard has reported. */
+        final AtomicInteger tau = new AtomicInteger(VantagePointTree.NO_LIMIT);
+        /** The shards we're still waiting on. Lock the Pending to use it (or the results). */
+        final Set<Shard> waiting = new HashSet<>();
+        final List<ShardProtocol.Result> results = new ArrayList<>();
+        /** The shards whose connection dropped before they answered. */
+        final List<Shard> failed = new ArrayList<>();
+
+        Pending(int requestId) {
+            this.requestId = requestId;
+        }
+
+        void onTau(Shard from, int value) {
+            if (value >= tau.getAndAccumulate(value, Math::min)) {
+                return;
+            }
+
+            // it's the best so far, so tell everyone else still searching
+            List<Shard> others;
+            synchronized (this) {
+                others = new ArrayList<>(waiting);
+            }
+            for (Shard shard : others) {
+                if (shard != from) shard.sendTau(requestId, value);
+            }
+        }
+
+        synchronized void onResult(Shard from, ShardProtocol.Result result) {
+            if (waiting.remove(from)) {
+                results.add(result);
+                notifyAll();
+            }
+        }
+
+        synchronized void onFailure(Shard from) {
+            if (waiting.remove(from)) {
+                failed.add(from);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait for every shard to answer (or fail), or the deadline.
+         * @param deadline A System.nanoTime() value, or 0 for no deadline
+         */
+        synchronized void await(long deadline) throws InterruptedException {
+            while (!waiting.isEmpty()) {
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return;
+                    wait(remaining / 1_000_000 + 1);
+                }
+            }
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    /** Local shard servers we started (see spawn()), to stop when we're closed. */
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * @param addresses The shard servers, as host:port
+     */
+    public ShardCoordinator(List<String> addresses) {
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("expected host:port, got " + address);
+            shards.add(new Shard(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * Start local shard servers over a directory, as separate processes, and make a coordinator for them.
+     * @param directory The corpus
+     * @param count The number of shards
+     * @return the coordinator; closing it stops the servers
+     * @throws IOException if a server couldn't be started
+     */
+    public static ShardCoordinator spawn(String directory, int count) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        String classPath = System.getProperty("java.class.path");
+        Pattern listening = Pattern.compile("Listening on port (\\d+)");
+
+        List<Process> started = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                Process process = new ProcessBuilder(java, "-cp", classPath, "ShardServer", directory, "0", String.valueOf(i), String.valueOf(count))
+                    .redirectErrorStream(true)
+                    .start();
+                started.add(process);
+            }
+
+            // they build at the same time; wait for each one to say where it's listening
+            for (int i = 0; i < count; i++) {
+                BufferedReader output = new BufferedReader(new InputStreamReader(started.get(i).getInputStream()));
+                String line;
+                Matcher matcher = null;
+                while ((line = output.readLine()) != null) {
+                    matcher = listening.matcher(line);
+                    if (matcher.find()) break;
+                }
+                if (line == null) throw new IOException("shard server " + i + " exited before it started listening");
+                addresses.add("localhost:" + matcher.group(1));
+                System.err.printf("Shard %d is listening on port %s.%n", i, matcher.group(1));
+
+                // keep reading its output, so it never blocks on a full pipe
+                Thread drain = new Thread(() -> {
+                    try {
+                        while (output.readLine() != null) {
+                            // nobody's watching
+                        }
+                    } catch (IOException ignored) {
+                        // it exited
+                    }
+                }, "shard-output");
+                drain.setDaemon(true);
+                drain.start();
+            }
+        } catch (IOException e) {
+            started.forEach(Process::destroy);
+            throw e;
+        }
+
+        ShardCoordinator coordinator = new ShardCoordinator(addresses);
+        coordinator.processes.addAll(started);
+        return coordinator;
+    }
+
+    /**
+     * Find the k nearest neighbors of a sequence across every shard.
+     * @param query The sequence to search for
+     * @param k The number of neighbors
+     * @param timeoutMillis How long the shards can search, in milliseconds, or 0 to wait for them however long it takes
+     *                      (dead shards are still left out)
+     * @return the answer
+     */
+    public Answer knn(String query, int k, int timeoutMillis) {
+        Pending request = new Pending(nextRequestId.incrementAndGet());
+        pending.put(request.requestId, request);
+        List<String> missing = new ArrayList<>();
+
+        try {
+            // register first, so an answer (or a failure) can't arrive before we know we're waiting for it
+            List<Shard> asked = new ArrayList<>();
+            for (Shard shard : shards) {
+                if (shard.ensureConnected()) {
+                    synchronized (request) {
+                        request.waiting.add(shard);
+                    }
+                    asked.add(shard);
+                } else {
+                    missing.add(shard + " (down)");
+                }
+            }
+
+            for (Shard shard : asked) {
+                if (!shard.sendQuery(request.requestId, k, timeoutMillis, query)) {
+                    request.onFailure(shard);
+                }
+            }
+
+            request.await(timeoutMillis > 0 ? System.nanoTime() + (timeoutMillis + GRACE_MS) * 1_000_000L : 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.remove(request.requestId);
+        }
+
+        List<ShardProtocol.Hit> hits = new ArrayList<>();
+        boolean resultsExact = true;
+        int lowerBound = VantagePointTree.NO_LIMIT;
+        long distanceCalls = 0;
+
+        synchronized (request) {
+            for (Shard shard : request.failed) {
+                missing.add(shard + " (lost the connection)");
+            }
+            for (Shard shard : request.waiting) {
+                TIMEOUTS.hit();
+                missing.add(shard + " (timed out)");
+            }
+
+            for (ShardProtocol.Result result : request.results) {
+                hits.addAll(result.hits);
+                distanceCalls += result.distanceCalls;
+                if (!result.exact) {
+                    resultsExact = false;
+                    lowerBound = Math.min(lowerBound, result.lowerBound);
+                }
+            }
+        }
+
+        hits.sort(Comparator.comparingInt(hit -> hit.distance));
+        if (hits.size() > k) hits = new ArrayList<>(hits.subList(0, k));
+
+        // a shard that gave up early can't matter if every hit is closer than anything it could hold
+        if (!resultsExact && k > 0 && hits.size() == k && lowerBound > hits.get(k - 1).distance) {
+            resultsExact = true;
+        }
+
+        return new Answer(hits, missing.isEmpty() && resultsExact, missing, distanceCalls);
+    }
+
+    /**
+     * @return the total number of nodes in the connected shards
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            if (shard.ensureConnected()) size += shard.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            Socket socket;
+            synchronized (shard) {
+                socket = shard.socket;
+            }
+            if (socket != null) shard.disconnect(socket);
+        }
+
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int k = 10;
+        int timeout = 10_000;
+        List<String> addresses = null;
+        String spawnDirectory = null;
+        int spawnCount = 0;
+        List<File> queryFiles = new ArrayList<>();
+        boolean valid = true;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--k":
+                        k = Integer.parseInt(args[++i]);
+                        break;
+                    case "--timeout":
+                        timeout = Integer.parseInt(args[++i]);
+                        break;
+                    case "--shards":
+                        addresses = List.of(args[++i].split(","));
+                        break;
+                    case "--spawn":
+                        spawnDirectory = args[++i];
+                        spawnCount = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        queryFiles.add(new File(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            valid = false;
+        }
+
+        if (!valid || (addresses == null) == (spawnDirectory == null) || queryFiles.isEmpty()) {
+            System.out.println("Usage: ShardCoordinator [--k N] [--timeout ms] --shards host:port[,host:port...] <query files...>");
+            System.out.println("   or: ShardCoordinator [--k N] [--timeout ms] --spawn <directory> <count> <query files...>");
+            return;
+        }
+
+        // same as ProteinSearch's batch mode: only the results go to stdout
+        PrintStream results = System.out;
+        System.setOut(System.err);
+
+        ShardCoordinator coordinator = addresses != null ? new ShardCoordinator(addresses) : spawn(spawnDirectory, spawnCount);
+
+        try (coordinator) {
+            // one thread, so they stay in order
+            List<FASTAFile> queries = new ArrayList<>();
+            ProteinSearch.loadFiles(queryFiles, 1).forEachRemaining(queries::add);
+
+            results.println("query\trank\tdistance\tlength\tdescription");
+            for (FASTAFile query : queries) {
+                try {
+                    String name = query.getDescription().split("\\s", 2)[0];
+                    Answer answer = coordinator.knn(query.getFASTAData(), k, timeout);
+
+                    int rank = 0;
+                    for (ShardProtocol.Hit hit : answer.hits) {
+                        rank++;
+                        results.printf("%s\t%d\t%d\t%d\t%s%n", name, rank, hit.distance, hit.length, hit.description);
+                    }
+
+                    if (!answer.missing.isEmpty()) {
+                        System.err.printf("NOTE: the results for %s may not be exact; missing: %s%n", name, answer.missing);
+                    } else if (!answer.exact) {
+                        System.err.printf("NOTE: the results for %s may not be exact; some shards stopped early.%n", name);
+                    }
+                } catch (IOException e) {
+                    System.err.printf("Couldn't load %s (skipped): %s%n", query, e.getMessage());
+                }
+            }
+
+            results.flush();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary protocol between ShardServer and ShardCoordinator, over a plain TCP connection.
+ * Everything is big-endian (DataInput/DataOutput), and strings are an int length and then UTF-8 bytes.
+ *
+ * When a connection opens, the server sends a hello: MAGIC, VERSION, its shard number, the number of shards,
+ * and its node count (all ints). After that, either side can send messages at any time, each starting with its type byte:
+ * - QUERY (coordinator to server): request id, k, max distance, time limit in ms (0 for none), the query
+ * - TAU (either way): request id, tau. From a server, its k-th best so far improved;
+ *   from the coordinator, some shard found k results this good, so there's no point looking farther
+ * - RESULT (server to coordinator): request id, exact (a byte), lower bound, distance calls (a long), hit count,
+ *   then for each hit: distance, length, name, description
+ * Several queries can be in flight on one connection at once; replies can come back in any order.
+ */
+public final class ShardProtocol {
+    /** Starts the hello. ("PSHD") */
+    static final int MAGIC = 0x50534844;
+    /** The version of the protocol. */
+    static final int VERSION = 1;
+
+    static final byte QUERY = 'Q';
+    static final byte TAU = 'T';
+    static final byte RESULT = 'R';
+
+    /** The longest string either side will read, so a garbled length can't eat all the memory. */
+    private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+
+    private ShardProtocol() {}
+
+    /**
+     * A search result from a shard.
+     */
+    public static class Hit {
+        /** The edit distance to the query. */
+        public final int distance;
+        /** The length of the sequence. */
+        public final int length;
+        /** The node's toString() on the server (its file, and record). */
+        public final String name;
+        /** The FASTA description. */
+        public final String description;
+
+        public Hit(int distance, int length, String name, String description) {
+            this.distance = distance;
+            this.length = length;
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    /**
+     * A shard's answer to a query.
+     */
+    public static class Result {
+        public final int requestId;
+        /** Whether the hits are the shard's exact k nearest (see SearchResult). */
+        public final boolean exact;
+        /** If not exact, nothing the shard didn't get to is closer than this. */
+        public final int lowerBound;
+        public final long distanceCalls;
+        /** Closest first. */
+        public final List<Hit> hits;
+
+        public Result(int requestId, boolean exact, int lowerBound, long distanceCalls, List<Hit> hits) {
+            this.requestId = requestId;
+            this.exact = exact;
+            this.lowerBound = lowerBound;
+            this.distanceCalls = distanceCalls;
+            this.hits = hits;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("bad string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeHello(DataOutputStream out, int shard, int shards, int size) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(shard);
+        out.writeInt(shards);
+        out.writeInt(size);
+        out.flush();
+    }
+
+    /**
+     * Read the server's hello.
+     * @return {shard number, number of shards, node count}
+     * @throws IOException if it isn't a shard server (or a different version)
+     */
+    static int[] readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a shard server (or a different version)");
+        }
+        return new int[] {in.readInt(), in.readInt(), in.readInt()};
+    }
+
+    static void writeQuery(DataOutputStream out, int requestId, int k, int maxDistance, int timeLimitMillis, String query) throws IOException {
+        out.writeByte(QUERY);
+        out.writeInt(requestId);
+        out.writeInt(k);
+        out.writeInt(maxDistance);
+        out.writeInt(timeLimitMillis);
+        writeString(out, query);
+        out.flush();
+    }
+
+    static void writeTau(DataOutputStream out, int requestId, int tau) throws IOException {
+        out.writeByte(TAU);
+        out.writeInt(requestId);
+        out.writeInt(tau);
+        out.flush();
+    }
+
+    static void writeResult(DataOutputStream out, Result result) throws IOException {
+        out.writeByte(RESULT);
+        out.writeInt(result.requestId);
+        out.writeBoolean(result.exact);
+        out.writeInt(result.lowerBound);
+        out.writeLong(result.distanceCalls);
+        out.writeInt(result.hits.size());
+        for (Hit hit : result.hits) {
+            out.writeInt(hit.distance);
+            out.writeInt(hit.length);
+            writeString(out, hit.name);
+            writeString(out, hit.description);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the rest of a RESULT message (after its type byte).
+     */
+    static Result readResult(DataInputStream in) throws IOException {
+        int requestId = in.readInt();
+        boolean exact = in.readBoolean();
+        int lowerBound = in.readInt();
+        long distanceCalls = in.readLong();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad hit count " + count);
+        }
+
+        List<Hit> hits = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int distance = in.readInt();
+            int length = in.readInt();
+            hits.add(new Hit(distance, length, readString(in), readString(in)));
+        }
+
+        return new Result(requestId, exact, lowerBound, distanceCalls, hits);
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves k-NN searches over one shard of a corpus, for a ShardCoordinator (see ShardProtocol for the wire format).
+ *
+ * For corpora too big for one heap: run one of these per shard (on one machine or several),
+ * each loading only its share of the directory, and point a coordinator at all of them.
+ * Nodes are assigned to shards by a hash of their name (see ShardedIndex.shardOf()), so every server can work out
+ * its share on its own, and only reads that share (see IngestionPipeline.onlyShard()).
+ * The index is whatever the config says (see SearchIndex.fromConfig()).
+ *
+ * Usage: ShardServer <directory> <port> [<shard> <shards>]
+ * Port 0 picks a free port; the port is printed as "Listening on port N" once the index is built.
+ */
+public class ShardServer implements AutoCloseable {
+    private static final DebugHelper.Counter QUERIES = DebugHelper.getInstance().counter("ShardServer.query");
+    private static final DebugHelper.Counter TAUS_RECEIVED = DebugHelper.getInstance().counter("ShardServer.tau/received");
+    private static final DebugHelper.Counter TAUS_SENT = DebugHelper.getInstance().counter("ShardServer.tau/sent");
+
+    /** The index of this shard. */
+    private final SearchIndex<FASTAFile> index;
+    /** This shard's number. */
+    private final int shard;
+    /** The number of shards. */
+    private final int shards;
+    private final ServerSocket socket;
+    /** Runs the searches, so a connection can have several going at once. */
+    private final ExecutorService searches;
+
+    /**
+     * Start listening (call serve() to answer).
+     * @param index The index of this shard
+     * @param port The port to listen on, or 0 for any free one
+     * @param shard This shard's number
+     * @param shards The number of shards
+     * @throws IOException if the port couldn't be opened
+     */
+    public ShardServer(SearchIndex<FASTAFile> index, int port, int shard, int shards) throws IOException {
+        this.index = index;
+        this.shard = shard;
+        this.shards = shards;
+        this.socket = new ServerSocket(port);
+        this.searches = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the port we're listening on
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Answer connections until the server is closed.
+     */
+    public void serve() {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                Thread thread = new Thread(() -> handle(connection), "shard-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answer one coordinator until it hangs up.
+     */
+    private void handle(Socket connection) {
+        // the tau of each query in flight, which the coordinator can lower at any time
+        Map<Integer, AtomicInteger> taus = new ConcurrentHashMap<>();
+
+        try (connection) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+            // replies come from the search threads, so they take turns writing
+            synchronized (out) {
+                ShardProtocol.writeHello(out, shard, shards, index.size());
+            }
+
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (type == ShardProtocol.QUERY) {
+                    int requestId = in.readInt();
+                    int k = in.readInt();
+                    int maxDistance = in.readInt();
+                    int timeLimit = in.readInt();
+                    String query = ShardProtocol.readString(in);
+
+                    AtomicInteger tau = new AtomicInteger(maxDistance);
+                    taus.put(requestId, tau);
+                    searches.submit(() -> {
+                        try {
+                            search(out, requestId, k, timeLimit, query, tau);
+                        } catch (IOException e) {
+                            // the connection's gone; the reading side will notice
+                        } catch (RuntimeException | Error e) {
+                            // the coordinator would wait for this one forever otherwise
+                            System.out.printf("Search %d failed: %s%n", requestId, e);
+                            sendFailure(out, requestId);
+                        } finally {
+                            taus.remove(requestId);
+                        }
+                    });
+                } else if (type == ShardProtocol.TAU) {
+                    int requestId = in.readInt();
+                    int value = in.readInt();
+                    TAUS_RECEIVED.hit();
+
+                    AtomicInteger tau = taus.get(requestId);
+                    if (tau != null) tau.accumulateAndGet(value, Math::min);
+                } else {
+                    throw new IOException("unknown message type " + type);
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("Lost connection to %s: %s%n", connection.getRemoteSocketAddress(), e.getMessage());
+        }
+    }
+
+    /**
+     * Run one query and send back the result, telling the coordinator whenever our k-th best gets better on the way.
+     */
+    private void search(DataOutputStream out, int requestId, int k, int timeLimit, String query, AtomicInteger tau) throws IOException {
+        QUERIES.hit();
+        AtomicInteger lastSent = new AtomicInteger(tau.get());
+
+        SearchOptions<FASTAFile> options = new SearchOptions<FASTAFile>()
+            .withMaxDistance(tau.get())
+            .withSharedTau(tau)
+            .withListener(interim -> {
+                if (k < 1 || interim.size() < k) return;
+
+                int kth = interim.get(k - 1).priority;
+                if (kth < lastSent.getAndAccumulate(kth, Math::min)) {
+                    try {
+                        synchronized (out) {
+                            ShardProtocol.writeTau(out, requestId, kth);
+                        }
+                        TAUS_SENT.hit();
+                    } catch (IOException e) {
+                        // the result won't make it either; the reading side will notice
+                    }
+                }
+            });
+        if (timeLimit > 0) options.withTimeLimit(timeLimit);
+
+        SearchResult<FASTAFile> result = index.knn(query, k, options);
+
+        List<ShardProtocol.Hit> hits = new ArrayList<>(result.results.size());
+        for (AssociatedPriorityQueue.Item<FASTAFile> item : result.results) {
+            String description;
+            try {
+                description = item.data.getDescription();
+            } catch (IOException e) {
+                description = item.data.toString();
+            }
+            hits.add(new ShardProtocol.Hit(item.priority, item.data.getLength(), item.data.toString(), description));
+        }
+
+        synchronized (out) {
+            ShardProtocol.writeResult(out, new ShardProtocol.Result(requestId, result.exact, result.lowerBound, result.distanceCalls, hits));
+        }
+    }
+
+    /**
+     * Tell the coordinator a search failed: no results, and not exact (anything could be closer).
+     */
+    private void sendFailure(DataOutputStream out, int requestId) {
+        try {
+            synchronized (out) {
+                ShardProtocol.writeResult(out, new ShardProtocol.Result(requestId, false, 0, 0, List.of()));
+            }
+        } catch (IOException e) {
+            // the reading side will notice
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        searches.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 4) {
+            System.out.println("Usage: ShardServer <directory> <port> [<shard> <shards>]");
+            return;
+        }
+
+        int port = Integer.parseInt(args[1]);
+        int shard = args.length == 4 ? Integer.parseInt(args[2]) : 0;
+        int shards = args.length == 4 ? Integer.parseInt(args[3]) : 1;
+        if (shard < 0 || shard >= shards) {
+            System.out.println("The shard number has to be between 0 and the number of shards - 1.");
+            return;
+        }
+
+        System.out.printf("Building shard %d of %d...%n", shard, shards);
+        IngestionPipeline pipeline = new IngestionPipeline(List.of(new File(args[0]))).onlyShard(shard, shards);
+        SearchIndex<FASTAFile> index = SearchIndex.fromConfig();
+        try (pipeline) {
+            index.build(pipeline);
+        }
+
+        for (IngestionPipeline.Failure failure : pipeline.getErrors()) {
+            System.out.printf("Encountered error while loading %s (skipped)%n", failure);
+        }
+        if (ConfigMenu.PIN_LEVELS > 0) {
+            index.pin(ConfigMenu.PIN_LEVELS, ConfigMenu.PIN_MEGABYTES * 1024L * 1024L);
+        }
+
+        try (ShardServer server = new ShardServer(index, port, shard, shards)) {
+            System.out.printf("%nServing %d nodes. Listening on port %d%n", index.size(), server.getPort());
+            server.serve();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits the corpus into shards, each with its own independent sub-index, built and searched in parallel.
+ *
+ * Building n nodes into one tree is one long sequential job; building N shards of n / N nodes each
+ * takes about 1 / N as long with N threads, and a shard can be rebuilt on its own (see rebuildShard()).
+ * Each query is searched in every shard at once (scatter), and the per-shard k best are merged (gather).
+ * The shards share one tau (SearchOptions.sharedTau): as soon as any shard has k results,
+ * the others stop looking at anything farther than its k-th best. So the total work stays close to
+ * searching one big tree, but the latency is spread over the cores.
+ *
+ * Nodes are assigned to shards by a hash of their name (see shardOf()), so every shard gets a similar mix
+ * of lengths and families, and which shard a node belongs to never changes (see rebuildShard(), and ShardServer).
+ * The searches run on the shard threads, so they don't show up in the caller's SearchTrace.
+ * Shards can be rebuilt (or the whole index built again) while searches are running: each search sticks with
+ * the shards it started with, and the replaced shards are only closed once the searches using them are done.
+ * Call close() once the index isn't needed any more, to stop them.
+ */
+public class ShardedIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /** The number of shards. */
+    private final int numShards;
+    /** Makes the (empty) sub-index for each shard. */
+    private final Supplier<SearchIndex<T>> factory;
+    /** The shards. Never changed in place, only replaced, so a search can hold on to the ones it started with. */
+    private volatile List<SearchIndex<T>> shards = Collections.emptyList();
+    /** Held (shared) by every search for as long as it uses its shards, so replaced shards aren't closed under it. */
+    private final ReadWriteLock searching = new ReentrantReadWriteLock();
+    /** Builds and searches the shards, one thread per shard. */
+    private final ExecutorService pool;
+    /** Bumped whenever a shard is rebuilt (see getVersion()). */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Create a new, empty index.
+     * @param numShards The number of shards
+     * @param factory Makes an empty sub-index for each shard
+     */
+    public ShardedIndex(int numShards, Supplier<SearchIndex<T>> factory) {
+        this.numShards = numShards;
+        this.factory = factory;
+        this.pool = Executors.newFixedThreadPool(numShards, runnable -> {
+            Thread thread = new Thread(runnable, "shard");
+            // don't keep the app running just for these
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run a task on every shard at once, and wait for all of them.
+     * @param shards The shards (a snapshot of the field, so they can't change halfway through)
+     * @param task What to do with each shard (and its number)
+     * @return the results, in shard order
+     */
+    private <X> List<X> scatter(List<SearchIndex<T>> shards, ShardTask<T, X> task) {
+        List<Future<X>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            SearchIndex<T> shard = shards.get(i);
+            int number = i;
+            futures.add(pool.submit((Callable<X>) () -> task.run(shard, number)));
+        }
+
+        List<X> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<X> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+
+        return results;
+    }
+
+    /**
+     * Something to do with one shard.
+     */
+    @FunctionalInterface
+    private interface ShardTask<T extends VantagePointTree.Node, X> {
+        X run(SearchIndex<T> shard, int number);
+    }
+
+    /**
+     * Work out which shard a node belongs in.
+     * String.hashCode() is the same in every JVM, so this is the same every time (and in every process).
+     * @param node The node
+     * @param numShards The number of shards
+     * @return the shard number
+     */
+    public static int shardOf(VantagePointTree.Node node, int numShards) {
+        return Math.floorMod(node.toString().hashCode(), numShards);
+    }
+
+    /**
+     * Close shards that were replaced, once no search is using them any more.
+     * Don't call this from inside a search, or it'll wait forever.
+     * @param replaced The shards
+     */
+    private void closeWhenIdle(List<SearchIndex<T>> replaced) {
+        // every search that could have picked these up holds the read lock until it's done,
+        // and new ones only see the new shards, so once we get the write lock nobody's using them
+        searching.writeLock().lock();
+        searching.writeLock().unlock();
+
+        for (SearchIndex<T> shard : replaced) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Build the index. Building it again replaces every shard.
+     */
+    @Override
+    public void build(Iterator<T> iterator) {
+        List<List<T>> members = new ArrayList<>();
+        List<SearchIndex<T>> built = new ArrayList<>();
+        for (int i = 0; i < numShards; i++) {
+            members.add(new ArrayList<>());
+            built.add(factory.get());
+        }
+
+        while (iterator.hasNext()) {
+            T node = iterator.next();
+            members.get(shardOf(node, numShards)).add(node);
+        }
+
+        System.out.printf("Building %d shards in parallel...%n", numShards);
+        scatter(built, (shard, number) -> {
+            long start = System.nanoTime();
+            shard.build(members.get(number).iterator());
+            System.out.printf("Built shard %d (%d nodes) in %d ms.%n", number, shard.size(), (System.nanoTime() - start) / 1_000_000);
+            return null;
+        });
+
+        List<SearchIndex<T>> old;
+        synchronized (this) {
+            old = shards;
+            shards = Collections.unmodifiableList(built);
+            version.incrementAndGet();
+        }
+        closeWhenIdle(old);
+    }
+
+    /**
+     * Replace the contents of one shard, without touching the others, e.g. after files in the corpus changed.
+     * A CachingIndex around this one notices by itself (see getVersion()). Don't use this under a DeduplicatingIndex,
+     * which wouldn't know about any new duplicates.
+     * Searches can keep running meanwhile; ones that already started finish with the old shard, which is closed
+     * once they're done (so this waits for them).
+     * @param number The shard
+     * @param nodes Every node that should be in the index now; only the ones that belong in this shard (see shardOf()) are kept
+     */
+    public void rebuildShard(int number, Iterator<T> nodes) {
+        List<T> members = new ArrayList<>();
+        while (nodes.hasNext()) {
+            T node = nodes.next();
+            if (shardOf(node, numShards) == number) members.add(node);
+        }
+
+        SearchIndex<T> shard = factory.get();
+        shard.build(members.iterator());
+
+        SearchIndex<T> old;
+        synchronized (this) {
+            List<SearchIndex<T>> updated = new ArrayList<>(shards);
+            old = updated.set(number, shard);
+            shards = Collections.unmodifiableList(updated);
+            version.incrementAndGet();
+        }
+        closeWhenIdle(List.of(old));
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        return this.knn(query, k, VantagePointTree.NO_LIMIT);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        return this.knn(query, k, new SearchOptions<T>().withMaxDistance(maxDistance)).results;
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        // the k-th best distance in any shard so far (or the one we were handed, if we're a shard ourselves)
+        AtomicInteger tau = options.sharedTau != null ? options.sharedTau : new AtomicInteger(options.maxDistance);
+
+        // every listener sees the results of all the shards so far
+        AssociatedPriorityQueue<T> merged = new AssociatedPriorityQueue<>(k);
+
+        List<SearchResult<T>> results;
+        searching.readLock().lock();
+        try {
+            List<SearchIndex<T>> current = shards;
+            results = scatter(current, (shard, number) -> {
+                SearchOptions<T> shardOptions = options.copy();
+                shardOptions.sharedTau = tau;
+                // the shards run at once, so they split the distance budget evenly
+                if (options.maxDistanceCalls > 0) shardOptions.maxDistanceCalls = Math.max(1, options.maxDistanceCalls / current.size());
+                if (options.listener != null) {
+                    shardOptions.listener = items -> {
+                        synchronized (merged) {
+                            items.forEach(merged::prioritize);
+                            options.emit(new ArrayList<>(merged));
+                        }
+                    };
+                }
+
+                return shard.knn(query, k, shardOptions);
+            });
+        } finally {
+            searching.readLock().unlock();
+        }
+
+        AssociatedPriorityQueue<T> best = new AssociatedPriorityQueue<>(k);
+        boolean exact = true;
+        int lowerBound = VantagePointTree.NO_LIMIT;
+        long distanceCalls = 0;
+
+        for (SearchResult<T> result : results) {
+            result.results.forEach(best::prioritize);
+            distanceCalls += result.distanceCalls;
+
+            if (!result.exact) {
+                exact = false;
+                lowerBound = Math.min(lowerBound, result.lowerBound);
+            }
+        }
+
+        // a shard that gave up early can't matter if the results we have are all closer than anything it could hold
+        if (!exact && best.atCapacity() && lowerBound > best.getWorstPriority()) {
+            exact = true;
+        }
+
+        return new SearchResult<>(new ArrayList<>(best), exact, lowerBound, distanceCalls);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        // the sink doesn't have to be thread-safe
+        Object lock = new Object();
+        searching.readLock().lock();
+        try {
+            scatter(shards, (shard, number) -> {
+                shard.range(query, radius, item -> {
+                    synchronized (lock) {
+                        sink.accept(item);
+                    }
+                });
+                return null;
+            });
+        } finally {
+            searching.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        List<SearchIndex<T>> current = shards;
+        long pinned = 0;
+
+        // share the memory evenly, and hand whatever a small shard doesn't use to the rest
+        for (int i = 0; i < current.size(); i++) {
+            long share = (maxBytes - pinned) / (current.size() - i);
+            pinned += current.get(i).pin(levels, share);
+        }
+
+        return pinned;
+    }
+
+    @Override
+    public long getVersion() {
+        return version.get() + shards.stream().mapToLong(SearchIndex::getVersion).sum();
+    }
+
+    @Override
+    public void close() {
+        closeWhenIdle(shards);
+        pool.shutdown();
+    }
+
+    @Override
+    public int size() {
+        return shards.stream().mapToInt(SearchIndex::size).sum();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("nodes", (long) size());
+        stats.put("shards", (long) shards.size());
+
+        // report the worst case of each sub-index statistic
+        for (SearchIndex<T> shard : shards) {
+            shard.stats().forEach((key, value) -> {
+                if (!key.equals("nodes")) {
+                    stats.merge(key, value, Math::max);
+                }
+            });
+        }
+
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        List<T> nodes = new ArrayList<>();
+        for (SearchIndex<T> shard : shards) {
+            nodes.addAll(shard.nodes());
+        }
+        return nodes;
+    }
+
+    @Override
+    public void print() {
+        List<SearchIndex<T>> current = shards;
+        for (int i = 0; i < current.size(); i++) {
+            System.out.printf("Shard %d:%n", i);
+            current.get(i).print();
+        }
+    }
+
+    @Override
+    public void verify() {
+        for (SearchIndex<T> shard : shards) {
+            shard.verify();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * A deterministic generator of realistic-ish protein corpora, for tests and benchmarks
+ * that can't ship the real UniProt data.
+ *
+ * Sequences come in families: each family has a random ancestor (with UniProt's background amino acid
+ * frequencies and a log-normal length distribution), and its members are copies of earlier members
+ * with substitutions, insertions and deletions. The same seed always gives the same corpus,
+ * so the corpus never has to be stored: it can just be generated again.
+ *
+ * As a library, use stream() or generate(). From the command line:
+ *
+ *   java -cp release.jar SyntheticCorpus <output> <count> [--multifasta] [--seed n] [--queries n] [--k n]
+ *
+ * which writes the corpus (a folder of .fasta files, or one .multifasta file), a folder of
+ * query .fasta files, and the exact nearest neighbors of each query (for recall testing).
+ */
+public class SyntheticCorpus {
+    /** The 20 standard amino acids. */
+    private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+    /** Background frequencies of RESIDUES in UniProtKB/Swiss-Prot, in percent. */
+    private static final double[] FREQUENCIES = {
+        8.25, 1.38, 5.46, 6.72, 3.86, 7.07, 2.27, 5.91, 5.80, 9.64,
+        2.41, 4.06, 4.74, 3.93, 5.53, 6.65, 5.36, 6.86, 1.10, 2.92,
+    };
+    /** Cumulative version of FREQUENCIES, normalized to 1. */
+    private static final double[] CUMULATIVE = new double[FREQUENCIES.length];
+
+    static {
+        double total = 0;
+        for (double frequency : FREQUENCIES) total += frequency;
+
+        double sum = 0;
+        for (int i = 0; i < FREQUENCIES.length; i++) {
+            sum += FREQUENCIES[i] / total;
+            CUMULATIVE[i] = sum;
+        }
+    }
+
+    /**
+     * A generated sequence. It's also a Node, so it can go straight into a SearchIndex.
+     */
+    public static class Record extends VantagePointTree.Node {
+        /** Unique name, e.g. SYN0000042. */
+        public final String name;
+        /** Which family this belongs to. */
+        public final int family;
+        /** The sequence. */
+        public final String sequence;
+
+        public Record(String name, int family, String sequence) {
+            this.name = name;
+            this.family = family;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return a UniProt-style FASTA header line, including the '>'
+         */
+        public String getHeader() {
+            return String.format(">sp|%s|%s_SYNTH Synthetic protein %s of family %d OS=Synthetic", name, name, name, family);
+        }
+
+        /**
+         * @return the whole record in FASTA format, with 60 residues per line
+         */
+        public String toFASTA() {
+            StringBuilder builder = new StringBuilder(getHeader()).append('\n');
+            for (int i = 0; i < sequence.length(); i += 60) {
+                builder.append(sequence, i, Math.min(sequence.length(), i + 60)).append('\n');
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        @Override
+        String getRawData() {
+            return sequence;
+        }
+
+        @Override
+        int getLength() {
+            return sequence.length();
+        }
+    }
+
+    /** The seed everything is derived from. */
+    private final long seed;
+
+    /** The average number of sequences per family. */
+    public int familySize = 10;
+    /** Median sequence length (UniProt's is a bit under 300). */
+    public int medianLength = 280;
+    /** Spread of the log-normal length distribution. */
+    public double lengthSigma = 0.6;
+    /** Shortest allowed sequence. */
+    public int minLength = 20;
+    /** Longest allowed sequence (titin is about 35000). */
+    public int maxLength = 35000;
+    /** Per-residue probability of a substitution when making a family member. */
+    public double substitutionRate = 0.08;
+    /** Per-residue probability of an insertion or deletion when making a family member. */
+    public double indelRate = 0.02;
+
+    /**
+     * @param seed The seed for everything
+     */
+    public SyntheticCorpus(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param random The RNG to use
+     * @return a residue drawn from the background frequencies
+     */
+    private static char randomResidue(Random random) {
+        double x = random.nextDouble();
+        for (int i = 0; i < CUMULATIVE.length; i++) {
+            if (x < CUMULATIVE[i]) return RESIDUES.charAt(i);
+        }
+        return RESIDUES.charAt(RESIDUES.length() - 1);
+    }
+
+    /**
+     * @param random The RNG to use
+     * @return a length drawn from the (clamped) log-normal distribution
+     */
+    private int sampleLength(Random random) {
+        double length = medianLength * Math.exp(lengthSigma * random.nextGaussian());
+        return (int) Math.max(minLength, Math.min(maxLength, Math.round(length)));
+    }
+
+    /**
+     * @param random The RNG to use
+     * @param length The length
+     * @return a random sequence with background frequencies
+     */
+    private static String randomSequence(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) builder.append(randomResidue(random));
+        return builder.toString();
+    }
+
+    /**
+     * Mutate a sequence with substitutions, insertions and deletions.
+     * @param random The RNG to use
+     * @param ancestor The sequence to mutate
+     * @param scale Multiplies the mutation rates (1 is normal)
+     * @return the mutated copy
+     */
+    public String mutate(Random random, String ancestor, double scale) {
+        StringBuilder builder = new StringBuilder(ancestor.length() + 16);
+
+        for (int i = 0; i < ancestor.length(); i++) {
+            double x = random.nextDouble();
+
+            if (x < indelRate * scale / 2 && builder.length() + ancestor.length() - i > minLength) {
+                // deletion: just skip it
+                continue;
+            } else if (x < indelRate * scale) {
+                // insertion before this residue
+                builder.append(randomResidue(random));
+                builder.append(ancestor.charAt(i));
+            } else if (x < (indelRate + substitutionRate) * scale) {
+                builder.append(randomResidue(random));
+            } else {
+                builder.append(ancestor.charAt(i));
+            }
+        }
+
+        return builder.length() > maxLength ? builder.substring(0, maxLength) : builder.toString();
+    }
+
+    /**
+     * Lazily generate the corpus, one family at a time, so even huge corpora don't need much memory.
+     * @param count The number of sequences
+     * @return the records, always in the same order for the same seed
+     */
+    public Iterator<Record> stream(int count) {
+        return new Iterator<Record>() {
+            private final Random random = new Random(seed);
+            private final List<String> members = new ArrayList<>();
+            private int generated = 0;
+            private int family = -1;
+            private int remainingInFamily = 0;
+
+            @Override
+            public boolean hasNext() {
+                return generated < count;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String sequence;
+
+                if (remainingInFamily == 0) {
+                    // start a new family with a fresh ancestor
+                    family++;
+                    members.clear();
+                    remainingInFamily = 1 + random.nextInt(2 * familySize);
+                    sequence = randomSequence(random, sampleLength(random));
+                } else {
+                    // descend from a random earlier member, so families are tree-shaped
+                    sequence = mutate(random, members.get(random.nextInt(members.size())), 1);
+                }
+
+                members.add(sequence);
+                remainingInFamily--;
+                generated++;
+
+                return new Record(String.format("SYN%07d", generated), family, sequence);
+            }
+        };
+    }
+
+    /**
+     * Generate the whole corpus in memory.
+     * @param count The number of sequences
+     * @return the records
+     */
+    public List<Record> generate(int count) {
+        List<Record> records = new ArrayList<>(count);
+        stream(count).forEachRemaining(records::add);
+        return records;
+    }
+
+    /**
+     * Make query sequences: lightly mutated copies of evenly spread corpus records.
+     * @param count The corpus size
+     * @param numQueries The number of queries
+     * @return the queries, named QUERY0001 etc. (family is the family of the record it came from)
+     */
+    public List<Record> generateQueries(int count, int numQueries) {
+        Random random = new Random(seed ^ 0x5eed5eed5eedL);
+        List<Record> queries = new ArrayList<>();
+        Iterator<Record> corpus = stream(count);
+
+        for (int i = 0; corpus.hasNext(); i++) {
+            Record record = corpus.next();
+
+            if (queries.size() < numQueries && (long) i * numQueries / count == queries.size()) {
+                queries.add(new Record(String.format("QUERY%04d", queries.size() + 1), record.family, mutate(random, record.sequence, 0.5)));
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * Compute the exact k nearest neighbors of each query by brute force, regenerating the corpus on the fly.
+     * This costs count * queries distance calculations, so keep the query set small for huge corpora.
+     * Ties are broken by name (lowest first), so the same seed always gives the same neighbors.
+     * @param count The corpus size
+     * @param queries The queries
+     * @param k The number of neighbors
+     * @return for each query, its neighbors (with distances), closest first
+     */
+    public List<List<AssociatedPriorityQueue.Item<Record>>> groundTruth(int count, List<Record> queries, int k) {
+        // not an AssociatedPriorityQueue: that breaks ties by identity hash, so which of several equally close
+        // records got dropped would change from run to run (and mutated families tie a lot)
+        Comparator<AssociatedPriorityQueue.Item<Record>> order = Comparator
+            .comparingInt((AssociatedPriorityQueue.Item<Record> item) -> item.priority)
+            .thenComparing(item -> item.data.name);
+        List<TreeSet<AssociatedPriorityQueue.Item<Record>>> best = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) best.add(new TreeSet<>(order));
+
+        // batches of records, each batch measured against every query in parallel
+        Iterator<Record> corpus = stream(count);
+        List<Record> batch = new ArrayList<>();
+
+        while (corpus.hasNext()) {
+            batch.clear();
+            while (corpus.hasNext() && batch.size() < 4096) batch.add(corpus.next());
+
+            IntStream.range(0, queries.size()).parallel().forEach(q -> {
+                TreeSet<AssociatedPriorityQueue.Item<Record>> queue = best.get(q);
+                String query = queries.get(q).sequence;
+
+                for (Record record : batch) {
+                    // the length difference is a free lower bound
+                    // (and a tie can't win either: the records come in name order, so the ones we have come first)
+                    boolean full = k > 0 && queue.size() >= k;
+                    if (full && Math.abs(record.sequence.length() - query.length()) >= queue.last().priority) {
+                        continue;
+                    }
+
+                    queue.add(new AssociatedPriorityQueue.Item<>(EditDistance.measureFast(query, record.sequence), record));
+                    if (k > 0 && queue.size() > k) queue.pollLast();
+                }
+            });
+        }
+
+        List<List<AssociatedPriorityQueue.Item<Record>>> results = new ArrayList<>();
+        for (TreeSet<AssociatedPriorityQueue.Item<Record>> queue : best) results.add(new ArrayList<>(queue));
+        return results;
+    }
+
+    /**
+     * Write the corpus as a folder with one .fasta file per record.
+     * @param count The number of sequences
+     * @param directory The folder to write to (created if needed)
+     * @throws IOException if writing fails
+     */
+    public void writeFASTADirectory(int count, File directory) throws IOException {
+        directory.mkdirs();
+
+        Iterator<Record> corpus = stream(count);
+        while (corpus.hasNext()) {
+            Record record = corpus.next();
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, record.name + ".fasta")))) {
+                writer.write(record.toFASTA());
+            }
+        }
+    }
+
+    /**
+     * Write the corpus as a single .multifasta file.
+     * @param count The number of sequences
+     * @param file The file to write
+     * @throws IOException if writing fails
+     */
+    public void writeMultiFASTA(int count, File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            Iterator<Record> corpus = stream(count);
+            while (corpus.hasNext()) {
+                writer.write(corpus.next().toFASTA());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: SyntheticCorpus <output dir> <count> [--multifasta] [--seed n] [--queries n] [--k n]");
+            return;
+        }
+
+        File output = new File(args[0]);
+        int count = Integer.parseInt(args[1]);
+        boolean multi = false;
+        long seed = 42;
+        int numQueries = 20;
+        int k = ConfigMenu.NUM_NEIGHBORS;
+
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--multifasta": multi = true; break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--queries": numQueries = Integer.parseInt(args[++i]); break;
+                case "--k": k = Integer.parseInt(args[++i]); break;
+                default:
+                    System.out.printf("Unknown option %s%n", args[i]);
+                    return;
+            }
+        }
+
+        SyntheticCorpus generator = new SyntheticCorpus(seed);
+        output.mkdirs();
+
+        System.out.printf("Writing %d sequences...%n", count);
+        if (multi) {
+            generator.writeMultiFASTA(count, new File(output, "corpus.multifasta"));
+        } else {
+            generator.writeFASTADirectory(count, new File(output, "corpus"));
+        }
+
+        List<Record> queries = generator.generateQueries(count, numQueries);
+        File queryDir = new File(output, "queries");
+        queryDir.mkdirs();
+        for (Record query : queries) {
+            try (PrintStream out = new PrintStream(new File(queryDir, query.name + ".fasta"))) {
+                out.print(query.toFASTA());
+            }
+        }
+
+        System.out.printf("Computing ground truth for %d queries...%n", queries.size());
+        List<List<AssociatedPriorityQueue.Item<Record>>> truth = generator.groundTruth(count, queries, k);
+
+        try (PrintStream out = new PrintStream(new File(output, "groundtruth.tsv"))) {
+            out.println("query\trank\tneighbor\tdistance");
+            for (int q = 0; q < queries.size(); q++) {
+                List<AssociatedPriorityQueue.Item<Record>> neighbors = truth.get(q);
+                for (int rank = 0; rank < neighbors.size(); rank++) {
+                    out.printf("%s\t%d\t%s\t%d%n", queries.get(q).name, rank + 1, neighbors.get(rank).data.name, neighbors.get(rank).priority);
+                }
+            }
+        }
+
+        System.out.println("Done.");
+    }
+}
@@ -11,4 +11,20 @@ public class Util {
     public static void ensure(boolean condition) {
         assert condition;
     }
+
+    /**
+     * A 64-bit FNV-1a hash of a sequence. Much less likely to collide than String.hashCode().
+     * @param sequence The sequence to hash
+     * @return the hash
+     */
+    public static long hashSequence(CharSequence sequence) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < sequence.length(); i++) {
+            hash ^= sequence.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
 }
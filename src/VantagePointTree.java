@@ -1,6 +1,9 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Implementation of a Vantage-Point binary metric tree.
@@ -43,8 +46,52 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
          * @return the length, in characters
          */
         abstract int getLength();
+
+        /**
+         * Get a content hash of the underlying data, so identical sequences can be found without comparing them.
+         * Subclasses should cache this if getRawData() is expensive.
+         * @return the hash (see Util.hashSequence)
+         */
+        long getSequenceHash() {
+            return Util.hashSequence(getRawData());
+        }
+
+        /**
+         * Keep the raw data in memory for good, because (nearly) every search is going to measure this node.
+         * Nodes that keep their data in memory anyway don't have to do anything.
+         * @return roughly how many bytes of memory this now takes up that it didn't before
+         */
+        long pin() {
+            return 0;
+        }
+
+        /**
+         * Undo pin(), e.g. once a job that needed everything in memory is done.
+         */
+        void unpin() {}
+
+        /**
+         * Start loading the raw data in the background, because it's probably about to be needed.
+         * Nodes that keep their data in memory anyway don't have to do anything.
+         */
+        void prefetch() {}
     }
 
+    // Handles for the debug stats
+    private static final DebugHelper.Counter SEARCH        = DebugHelper.getInstance().counter("VantagePointTree.search");
+    private static final DebugHelper.Counter SEARCH_BODY   = DebugHelper.getInstance().counter("VantagePointTree.search/body");
+    private static final DebugHelper.Counter SEARCH_BODY_1 = DebugHelper.getInstance().counter("VantagePointTree.search/body/1");
+    private static final DebugHelper.Counter SEARCH_BODY_2 = DebugHelper.getInstance().counter("VantagePointTree.search/body/2");
+    private static final DebugHelper.Counter SEARCH_BODY_3 = DebugHelper.getInstance().counter("VantagePointTree.search/body/3");
+    private static final DebugHelper.Counter RANGE         = DebugHelper.getInstance().counter("VantagePointTree.rangeSearch");
+    private static final DebugHelper.Counter RANGE_BODY    = DebugHelper.getInstance().counter("VantagePointTree.rangeSearch/body");
+    private static final DebugHelper.Counter RANGE_FOUND   = DebugHelper.getInstance().counter("VantagePointTree.rangeSearch/found");
+
+    // Don't use Integer.MAX_VALUE because it leads to all sorts of weird issues due to int overflow
+    // Wish I had thought of that 4 hours ago...
+    /** The search radius when there's no limit. */
+    static final int NO_LIMIT = 1_000_000_000;//Integer.MAX_VALUE;
+
     /**
      * Create a new tree
      * @param node the root node of this tree.
@@ -102,6 +149,36 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
         }
     }
 
+    /**
+     * Pin the nodes closest to the root (see Node.pin()), breadth-first, so the shallowest levels go first.
+     * @param levels How many levels to pin, counting this one
+     * @param maxBytes Stop once this many bytes are pinned
+     * @return how many bytes were pinned
+     */
+    public long pin(int levels, long maxBytes) {
+        long pinned = 0;
+        ArrayDeque<VantagePointTree<T>> level = new ArrayDeque<>();
+        level.add(this);
+
+        for (int depth = 0; depth < levels && !level.isEmpty(); depth++) {
+            ArrayDeque<VantagePointTree<T>> next = new ArrayDeque<>();
+
+            for (VantagePointTree<T> tree : level) {
+                if (pinned >= maxBytes) {
+                    return pinned;
+                }
+
+                pinned += tree.root.pin();
+                if (tree.getLeft()  != null) next.add((VantagePointTree<T>) tree.getLeft());
+                if (tree.getRight() != null) next.add((VantagePointTree<T>) tree.getRight());
+            }
+
+            level = next;
+        }
+
+        return pinned;
+    }
+
     /**
      * Search the tree for nearest neighbors to a given String
      * @param query The String to search for
@@ -110,19 +187,176 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
      * @return A list containing the nearest neighbors
      */
     public List<AssociatedPriorityQueue.Item<VantagePointTree<T>>> search(String query, int nns, boolean exhaustive) {
+        return this.search(query, nns, exhaustive, null);
+    }
+
+    /**
+     * Search the tree for nearest neighbors to a given String, and explain what it took
+     * @param query The String to search for
+     * @param nns The maximum number of neighbors to return
+     * @param exhaustive If true, go through every single subtree, including subtrees that shouldn't need to be searched
+     * @param trace If not null, filled in with the work done by this search (see SearchTrace.java)
+     * @return A list containing the nearest neighbors
+     */
+    public List<AssociatedPriorityQueue.Item<VantagePointTree<T>>> search(String query, int nns, boolean exhaustive, SearchTrace trace) {
+        if (trace == null) {
+            // there might be one active already (e.g. from the CLI)
+            return this.doSearch(query, nns, exhaustive, new SearchOptions<>(), SearchTrace.current()).results;
+        }
+
+        trace.begin();
+        try {
+            return this.doSearch(query, nns, exhaustive, new SearchOptions<>(), trace).results;
+        } finally {
+            trace.end();
+        }
+    }
+
+    /**
+     * Search the tree for nearest neighbors to a given String, ignoring anything farther away than maxDistance.
+     * If you already know nns nodes within maxDistance (e.g. from a similar query), the results are the same
+     * as search(), but a lot more can be pruned from the start.
+     * @param query The String to search for
+     * @param nns The maximum number of neighbors to return
+     * @param maxDistance The farthest a neighbor can be (inclusive)
+     * @return A list containing the nearest neighbors within maxDistance
+     */
+    public List<AssociatedPriorityQueue.Item<VantagePointTree<T>>> search(String query, int nns, int maxDistance) {
+        return this.doSearch(query, nns, false, new SearchOptions<T>().withMaxDistance(maxDistance), SearchTrace.current()).results;
+    }
+
+    /**
+     * Search the tree for nearest neighbors to a given String, giving up when the options say to.
+     * The search is best-first, so whatever's left in the queue when it stops bounds everything it didn't get to.
+     * @param query The String to search for
+     * @param nns The maximum number of neighbors to return
+     * @param options The deadline, distance budget, etc.
+     * @return the nearest neighbors found, and whether they're exact
+     */
+    public SearchResult<T> search(String query, int nns, SearchOptions<T> options) {
+        SearchResult<VantagePointTree<T>> result = this.doSearch(query, nns, false, options, SearchTrace.current());
+        return new SearchResult<>(unwrap(result.results), result.exact, result.lowerBound, result.distanceCalls);
+    }
+
+    /**
+     * Unwrap subtrees into their nodes.
+     * @param items Some search results
+     * @return the same results, with the root of each subtree instead of the subtree
+     */
+    static <T extends Node> List<AssociatedPriorityQueue.Item<T>> unwrap(List<AssociatedPriorityQueue.Item<VantagePointTree<T>>> items) {
+        List<AssociatedPriorityQueue.Item<T>> unwrapped = new ArrayList<>(items.size());
+        for (AssociatedPriorityQueue.Item<VantagePointTree<T>> item : items) {
+            unwrapped.add(new AssociatedPriorityQueue.Item<>(item.priority, item.data.root));
+        }
+        return unwrapped;
+    }
+
+    /**
+     * Find every node within a fixed distance of a given String.
+     * Unlike search(), the radius never shrinks, so there's no need to visit the closest subtrees first:
+     * this just walks the tree depth-first, pruning with the same bounds, and hands each match to sink as it's found.
+     * So huge result sets never have to be held in memory (unless sink keeps them).
+     * @param query The String to search for
+     * @param radius The maximum distance (inclusive)
+     * @param sink Receives each matching subtree (its root is the match) with its distance as the priority, in no particular order
+     * @return the number of matches
+     */
+    public long rangeSearch(String query, int radius, Consumer<AssociatedPriorityQueue.Item<VantagePointTree<T>>> sink) {
+        RANGE.hit();
+        SearchTrace trace = SearchTrace.current();
+        DistanceCache<T> distanceCache = new DistanceCache<>(query);
+        long found = 0;
+
+        ArrayDeque<VantagePointTree<T>> toSearch = new ArrayDeque<>();
+        toSearch.push(this);
+
+        while (!toSearch.isEmpty()) {
+            RANGE_BODY.hit();
+
+            VantagePointTree<T> current  = toSearch.pop();
+            if (trace != null) trace.nodesPopped++;
+
+            // start reading whatever's next while we measure this one
+            int issued = 0;
+            for (VantagePointTree<T> next : toSearch) {
+                if (issued++ >= ConfigMenu.PREFETCH_DEPTH) break;
+                next.root.prefetch();
+            }
+
+            VantagePointTree<T> curLeft  = (VantagePointTree<T>) current.getLeft();
+            VantagePointTree<T> curRight = (VantagePointTree<T>) current.getRight();
+            int dist;
+
+            // the same checks as search(), with a fixed tau
+            if (distanceCache.getLowerBound(current) > radius) {
+                if (trace != null) trace.prunedByLowerBound++;
+            } else if ((dist = distanceCache.distance(current)) > radius) {
+                if (trace != null) trace.prunedByDistance++;
+            } else {
+                RANGE_FOUND.hit();
+                found++;
+                sink.accept(new AssociatedPriorityQueue.Item<>(dist, current));
+            }
+
+            if (curLeft != null) {
+                if (distanceCache.getLowerBound(current) > current.root.threshold + radius) {
+                    if (trace != null) trace.prunedByLowerBound++;
+                } else if (distanceCache.distance(current) > current.root.threshold + radius) {
+                    if (trace != null) trace.prunedByDistance++;
+                } else {
+                    toSearch.push(curLeft);
+                }
+            }
+
+            if (curRight != null) {
+                if (distanceCache.getUpperBound(current) < current.root.threshold - radius) {
+                    if (trace != null) trace.prunedByLowerBound++;
+                } else if (distanceCache.distance(current) < current.root.threshold - radius) {
+                    if (trace != null) trace.prunedByDistance++;
+                } else {
+                    toSearch.push(curRight);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Start loading the sequences at the front of the search queue (see Node.prefetch()),
+     * so they're read while the current node is being measured.
+     * @param toSearch The search queue
+     * @param tau The current search radius; anything with a lower bound beyond this is going to be pruned anyway
+     */
+    private static <T extends Node> void prefetch(AssociatedPriorityQueue<VantagePointTree<T>> toSearch, int tau) {
+        int issued = 0;
+
+        for (AssociatedPriorityQueue.Item<VantagePointTree<T>> item : toSearch) {
+            if (issued >= ConfigMenu.PREFETCH_DEPTH || item.priority > tau) {
+                break;
+            }
+
+            item.data.root.prefetch();
+            issued++;
+        }
+    }
+
+    private SearchResult<VantagePointTree<T>> doSearch(String query, int nns, boolean exhaustive, SearchOptions<T> options, SearchTrace trace) {
         // https://fribbels.github.io/vptree/writeup
 
-        DebugHelper.getInstance().hit("VantagePointTree.search");
+        SEARCH.hit();
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        long nodesVisited = 0;
 
-        // Don't use Integer.MAX_VALUE because it leads to all sorts of weird issues due to int overflow
-        // Wish I had thought of that 4 hours ago...
-        int tau = 1_000_000_000;//Integer.MAX_VALUE;
+        int tau = options.maxDistance;
+        boolean stopped = false;
         AssociatedPriorityQueue<VantagePointTree<T>> toSearch = new AssociatedPriorityQueue<>();
         Util.ensure(toSearch.prioritizeItem(0, this));
         Util.ensure(!toSearch.isEmpty()); // you'd be surprised how much this has driven me mad
 
         AssociatedPriorityQueue<VantagePointTree<T>> results = new AssociatedPriorityQueue<>(nns);
-        DistanceCache<T> distanceCache = new DistanceCache<>(query);
+        DistanceCache<T> distanceCache = new DistanceCache<>(query, options.onMeasured);
 
         while (
             !toSearch.isEmpty()
@@ -132,11 +366,23 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
             // This is an optimization not in the original writeup.
             //&& toSearch.peek().priority <= tau
         ) {
-            DebugHelper.getInstance().hit("VantagePointTree.search/body");
+            SEARCH_BODY.hit();
+
+            if (!exhaustive && options.isExhausted(distanceCache.getMeasurements())) {
+                // out of time (or distance calls), so settle for what we have
+                stopped = true;
+                break;
+            }
+
+            // another search for the same query (e.g. in another shard) may have done better
+            if (options.sharedTau != null) tau = Math.min(tau, options.sharedTau.get());
 
             AssociatedPriorityQueue.Item<VantagePointTree<T>> currentItem = toSearch.poll();
+            nodesVisited++;
+            if (trace != null) trace.nodesPopped++;
 
             VantagePointTree<T> current  = currentItem.data;
+            if (!exhaustive) prefetch(toSearch, tau);
             VantagePointTree<T> curLeft  = (VantagePointTree<T>) current.getLeft();
             VantagePointTree<T> curRight = (VantagePointTree<T>) current.getRight();
 
@@ -148,43 +394,67 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
             } else {
                 int dist;
                 // search intelligently
-                if (
-                    distanceCache.getLowerBound(current) <= tau
-                    && (dist = distanceCache.distance(current)) <= tau
-                ) {
-                    DebugHelper.getInstance().hit("VantagePointTree.search/body/1");
-                    results.prioritizeItem(dist, current);
+                // (each check is split up so the trace can tell which bound did the pruning)
+                if (distanceCache.getLowerBound(current) > tau) {
+                    if (trace != null) trace.prunedByLowerBound++;
+                } else if ((dist = distanceCache.distance(current)) > tau) {
+                    if (trace != null) trace.prunedByDistance++;
+                } else {
+                    SEARCH_BODY_1.hit();
+                    if (results.prioritizeItem(dist, current) && options.listener != null) {
+                        options.emit(unwrap(results));
+                    }
                     if (results.atCapacity()) {
-                        tau = results.getWorstPriority();
+                        tau = Math.min(tau, results.getWorstPriority());
+                        if (options.sharedTau != null) tau = options.sharedTau.accumulateAndGet(tau, Math::min);
+                        if (trace != null) trace.tau(tau);
                     }
                 }
 
-                if (
-                    curLeft != null
-                    && distanceCache.getLowerBound(current) <= current.root.threshold + tau
-                    && (dist = distanceCache.distance(current)) <= current.root.threshold + tau
-                ) {
-                    DebugHelper.getInstance().hit("VantagePointTree.search/body/2");
-                    toSearch.prioritizeItem(distanceCache.getRecursiveLowerBound(curLeft), curLeft);
+                if (curLeft != null) {
+                    if (distanceCache.getLowerBound(current) > current.root.threshold + tau) {
+                        if (trace != null) trace.prunedByLowerBound++;
+                    } else if ((dist = distanceCache.distance(current)) > current.root.threshold + tau) {
+                        if (trace != null) trace.prunedByDistance++;
+                    } else {
+                        SEARCH_BODY_2.hit();
+                        toSearch.prioritizeItem(distanceCache.getRecursiveLowerBound(curLeft), curLeft);
+                    }
                 }
 
-                if (
-                    curRight != null
-                    && distanceCache.getUpperBound(current) >= current.root.threshold - tau
-                    && (dist = distanceCache.distance(current)) >= current.root.threshold - tau
-                ) {
-                    DebugHelper.getInstance().hit("VantagePointTree.search/body/3");
-                    toSearch.prioritizeItem(distanceCache.getRecursiveLowerBound(curRight), curRight);
+                if (curRight != null) {
+                    if (distanceCache.getUpperBound(current) < current.root.threshold - tau) {
+                        if (trace != null) trace.prunedByLowerBound++;
+                    } else if ((dist = distanceCache.distance(current)) < current.root.threshold - tau) {
+                        if (trace != null) trace.prunedByDistance++;
+                    } else {
+                        SEARCH_BODY_3.hit();
+                        toSearch.prioritizeItem(distanceCache.getRecursiveLowerBound(curRight), curRight);
+                    }
                 }
             }
         }
 
-        if (results.size() < nns) {
+        // if we stopped early, it's still exact if everything left was going to be pruned anyway
+        int lowerBound = toSearch.isEmpty() ? NO_LIMIT : toSearch.peek().priority;
+        boolean exact = !stopped || lowerBound > tau;
+
+        if (results.size() < nns && options.maxDistance == NO_LIMIT && options.sharedTau == null && exact) {
             // This shouldn't happen, hopefully
             System.out.println("NOTE: Some results may have been omitted due to tree layout.");
         }
 
-        return results;
+        event.end();
+        if (event.shouldCommit()) {
+            event.queryLength = query.length();
+            event.k = nns;
+            event.nodesVisited = nodesVisited;
+            event.distanceCalls = distanceCache.getMeasurements();
+            event.resultDistance = results.isEmpty() ? -1 : results.getWorstPriority();
+            event.commit();
+        }
+
+        return new SearchResult<>(results, exact, lowerBound, distanceCache.getMeasurements());
     }
 
     /**
@@ -198,16 +468,13 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
             return null;
         }
 
-        int i = 1;
+        // progress is up to whoever is loading the nodes (see IngestionPipeline)
         VantagePointTree<X> output = new VantagePointTree<>(iterator.next());
 
         while (iterator.hasNext()) {
             output.add(iterator.next());
-            System.out.printf("Processed %6d files so far...\r", ++i);
         }
 
-        System.out.println();
-
         // It turns out tree rotations break a lot of things, but I didn't notice because assertions were disabled.
         //output.balance();
 
@@ -235,7 +502,7 @@ public class VantagePointTree<T extends VantagePointTree.Node> extends Tree<T> {
 
         while (nodes.size() > 0) {
             optimized.add(nodes.poll());
-            System.out.printf("Optimized %6d nodes so far...\r", ++i);
+            if (++i % 1000 == 0) System.out.printf("Optimized %6d nodes so far...\r", i);
         }
 
         // It turns out tree rotations break a lot of things, but I didn't notice because assertions were disabled.
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Adapts VantagePointTree to the SearchIndex interface.
+ */
+public class VantagePointTreeIndex<T extends VantagePointTree.Node> implements SearchIndex<T> {
+    /** The tree, or null if nothing has been indexed. */
+    private VantagePointTree<T> tree = null;
+
+    /**
+     * @return the underlying tree, or null if the index is empty
+     */
+    @Override
+    public VantagePointTree<T> getTree() {
+        return tree;
+    }
+
+    @Override
+    public void build(Iterator<T> nodes) {
+        tree = VantagePointTree.buildFromIterator(nodes);
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k) {
+        List<AssociatedPriorityQueue.Item<T>> results = new ArrayList<>();
+
+        if (tree == null) {
+            return results;
+        }
+
+        // unwrap the subtrees into their nodes
+        for (AssociatedPriorityQueue.Item<VantagePointTree<T>> item : tree.search(query, k, false)) {
+            results.add(new AssociatedPriorityQueue.Item<>(item.priority, item.data.root));
+        }
+
+        return results;
+    }
+
+    @Override
+    public List<AssociatedPriorityQueue.Item<T>> knn(String query, int k, int maxDistance) {
+        return tree == null ? new ArrayList<>() : VantagePointTree.unwrap(tree.search(query, k, maxDistance));
+    }
+
+    @Override
+    public SearchResult<T> knn(String query, int k, SearchOptions<T> options) {
+        return tree == null ? SearchResult.exact(new ArrayList<>(), 0) : tree.search(query, k, options);
+    }
+
+    @Override
+    public void range(String query, int radius, Consumer<AssociatedPriorityQueue.Item<T>> sink) {
+        if (tree != null) {
+            // unwrap the subtrees into their nodes
+            tree.rangeSearch(query, radius, item -> sink.accept(new AssociatedPriorityQueue.Item<>(item.priority, item.data.root)));
+        }
+    }
+
+    @Override
+    public long pin(int levels, long maxBytes) {
+        return tree == null ? 0 : tree.pin(levels, maxBytes);
+    }
+
+    @Override
+    public int size() {
+        return tree == null ? 0 : tree.getSize();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("nodes", (long) size());
+        stats.put("depth", tree == null ? 0L : tree.getDepth());
+        return stats;
+    }
+
+    @Override
+    public List<T> nodes() {
+        return tree == null ? Collections.emptyList() : tree.getAllNodes();
+    }
+
+    @Override
+    public void print() {
+        if (tree != null) tree.print();
+    }
+
+    @Override
+    public void verify() {
+        if (tree != null) tree.verify();
+    }
+}